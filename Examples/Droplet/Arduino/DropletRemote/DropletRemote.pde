@@ -52,7 +52,16 @@
 // response is usually very fast (within 500ms) but if radio is not associated it can take upwards of 5 seconds
 #define STATUS_RESPONSE_TIMEOUT 500
 
+// the display.  the screen buffers are sized from this; Droplet only sends deltas for screens of up to 255 chars
 #define LCD_LINES 4
+#define LCD_COLUMNS 20
+#define SCREEN_SIZE (LCD_LINES * LCD_COLUMNS)
+// max chars of a packed page we unpack.  every char advances the cursor, so chars past the screen are never shown
+#define PACKED_MAX_CHARS SCREEN_SIZE
+// a page that doesn't fit in one packet is sent in fragments, back to back.  max wait between fragments
+#define FRAGMENT_TIMEOUT 1000
+// largest page we can reassemble: room for two screens of text with a line feed per line
+#define REASSEMBLY_SIZE (2 * (SCREEN_SIZE + LCD_LINES))
 
 // Specify the Arduino pins that are connected to the LCD
 int rsPin = 6;
@@ -98,6 +107,20 @@ bool buzzerState = false;
 long lastBuzzerMillis;
 int buzzerDelay = 1000;
 
+// the last page Droplet sent, as laid out on the LCD.  delta frames are applied to this
+uint8_t screen[SCREEN_SIZE];
+
+// fragments are copied here until the last one arrives
+uint8_t reassembly[REASSEMBLY_SIZE];
+int reassemblyLength = 0;
+// index of the fragment we expect next, or -1 if we lost one and are discarding the rest
+int nextFragment = 0;
+
+// the status byte and data of the last complete payload. data is in rx or the reassembly buffer
+uint8_t messageStatus = 0;
+uint8_t* message;
+int messageLength = 0;
+
 // true if a next page exists
 bool nextPage = false;
 // true if a previous page exists
@@ -176,6 +199,8 @@ void setup() {
   
   lcd.clear();
   
+  renderScreen(NULL, 0);
+  
   // TODO check that each menu listing doesn't exceed 19 chars
   printMenu(false, false);
   
@@ -226,7 +251,8 @@ void requestService(bool nextPageRequest, bool previousPageRequest) {
   // service id indicator
   payload[0] = currentMenuSelection;
   // next/prev indicator byte
-  payload[1] = 0;
+  // third bit tells Droplet we can decode packed text, fifth bit that we can apply deltas
+  payload[1] = (1 << 2) | (1 << 4);
   
   if (nextPageRequest && nextPage) {
     // set next page request bit
@@ -271,11 +297,25 @@ void requestService(bool nextPageRequest, bool previousPageRequest) {
                    if (xbee.getResponse().getApiId() == ZB_RX_RESPONSE) {
                    // now fill our zb rx class
                     xbee.getResponse().getZBRxResponse(rx);
+                    
+                    bool complete = receivePayload();
+                    
+                    // the rest of a fragmented page follows right away
+                    while (!complete && xbee.readPacket(FRAGMENT_TIMEOUT) && xbee.getResponse().getApiId() == ZB_RX_RESPONSE) {
+                      xbee.getResponse().getZBRxResponse(rx);
+                      complete = receivePayload();
+                    }
+                    
                     lcd.clear();
-                    // print char data directly from the packet payload, starting at the second byte
-                    lcd.println(rx.getFrameData(), rx.getDataOffset() + 1, rx.getDataLength() - 1);
                     
-                    if (rx.getData(0) & 1) {
+                    if (!complete) {
+                      lcd.println("Incomplete response");
+                      return;
+                    }
+                    
+                    printPayload();
+                    
+                    if (messageStatus & 1) {
                       // next page is available
                       nextPage = true;
                       
@@ -287,7 +327,7 @@ void requestService(bool nextPageRequest, bool previousPageRequest) {
                     }
                     
                     // 4th bit is the prev. page indicator
-                    if (rx.getData(0) & (1 << 3)) {
+                    if (messageStatus & (1 << 3)) {
                       previousPage = true; 
                     } else {
                       previousPage = false;
@@ -327,6 +367,148 @@ void requestService(bool nextPageRequest, bool previousPageRequest) {
     } 
 }
 
+// returns true if rx completes a payload: a single packet or the last fragment of a page.
+// a fragment has the 7th status bit set and a header byte of [index:4][last index:4] before the data
+bool receivePayload() {
+  uint8_t status = rx.getData(0);
+  
+  if (!(status & (1 << 6))) {
+    messageStatus = status;
+    message = rx.getFrameData() + rx.getDataOffset() + 1;
+    messageLength = rx.getDataLength() - 1;
+    return true;
+  }
+  
+  int index = rx.getData(1) >> 4;
+  int last = rx.getData(1) & 0x0f;
+  int length = rx.getDataLength() - 2;
+  
+  if (index == 0) {
+    // start of a page
+    reassemblyLength = 0;
+    nextFragment = 0;
+  }
+  
+  if (index != nextFragment || reassemblyLength + length > REASSEMBLY_SIZE) {
+    // lost a fragment (only the last one is acked, so Droplet doesn't know).  ask for the page again
+    nextFragment = -1;
+    
+    if (index == last) {
+      requestResync();
+    }
+    
+    return false;
+  }
+  
+  memcpy(reassembly + reassemblyLength, rx.getFrameData() + rx.getDataOffset() + 2, length);
+  reassemblyLength += length;
+  nextFragment++;
+  
+  if (index < last) {
+    return false;
+  }
+  
+  messageStatus = status & ~(1 << 6);
+  message = reassembly;
+  messageLength = reassemblyLength;
+  return true;
+}
+
+// prints char data of the last complete payload
+void printPayload() {
+  uint8_t* data = message;
+  int length = messageLength;
+  
+  if (messageStatus & (1 << 5)) {
+    // 6th bit indicates the data is a delta of our screen
+    if (!applyDelta(data, length)) {
+      // we don't have the screen Droplet thinks we have
+      lcd.println("Resyncing..");
+      requestResync();
+      return;
+    }
+  } else if (messageStatus & (1 << 4)) {
+    // 5th bit indicates the char data is 6-bit packed
+    uint8_t text[PACKED_MAX_CHARS];
+    int count = lcd.unpack(data, 0, length, text, PACKED_MAX_CHARS);
+    renderScreen(text, count);
+  } else {
+    renderScreen(data, length);
+  }
+  
+  lcd.print(screen, 0, SCREEN_SIZE);
+}
+
+// lays out text in the screen buffer as the LCD would print it.  LF pads to the end of the line
+void renderScreen(uint8_t* text, int length) {
+  int pos = 0;
+  
+  for (int i = 0; i < length && pos < SCREEN_SIZE; i++) {
+    if (text[i] == 10) {
+      pos = (pos / LCD_COLUMNS + 1) * LCD_COLUMNS;
+    } else {
+      screen[pos++] = text[i];
+    }
+  }
+  
+  while (pos < SCREEN_SIZE) {
+    screen[pos++] = ' ';
+  }
+}
+
+// fletcher-16 of the screen buffer.  Droplet sends this with each delta so we know we have the same screen
+uint16_t screenChecksum() {
+  uint16_t sum1 = 0;
+  uint16_t sum2 = 0;
+  
+  for (int i = 0; i < SCREEN_SIZE; i++) {
+    sum1 = (sum1 + screen[i]) % 255;
+    sum2 = (sum2 + sum1) % 255;
+  }
+  
+  return (sum2 << 8) | sum1;
+}
+
+// delta is two checksum bytes of the screen it applies to, then runs of [position][length][chars]
+// returns false if it doesn't apply to our screen
+bool applyDelta(uint8_t* data, int length) {
+  if (length < 2 || ((data[0] << 8) | data[1]) != screenChecksum()) {
+    return false;
+  }
+  
+  int i = 2;
+  
+  // check all runs before changing the screen
+  while (i + 2 <= length) {
+    if (data[i] + data[i + 1] > SCREEN_SIZE || i + 2 + data[i + 1] > length) {
+      return false;
+    }
+    
+    i += 2 + data[i + 1];
+  }
+  
+  i = 2;
+  
+  while (i + 2 <= length) {
+    memcpy(screen + data[i], data + i + 2, data[i + 1]);
+    i += 2 + data[i + 1];
+  }
+  
+  return true;
+}
+
+// asks Droplet to resend the current page in full.  it arrives as a push packet
+void requestResync() {
+  payload[0] = currentMenuSelection;
+  // 4th bit is resync
+  payload[1] = (1 << 2) | (1 << 3) | (1 << 4);
+  
+  xbee.send(zbTx);
+  
+  // consume the tx status so loop doesn't report it as unexpected
+  xbee.readPacket(STATUS_RESPONSE_TIMEOUT);
+}
+
 void reset() {
   nextPage = false;
   previousPage = false;  
@@ -487,39 +669,41 @@ void loop() {
       
       // TODO consolidate code with read w/ timeout
       if (xbee.getResponse().getApiId() == ZB_RX_RESPONSE) {
-        menuIsDisplayed = false;
-        
-        lcd.clear();
-                
         // This is a push service packet (i.e. no button was pressed)
         // we will display the contents of the packet to the LCD
         xbee.getResponse().getZBRxResponse(rx);
         
-        // print char data directly from the packet payload, starting at the second byte
-        lcd.println(rx.getFrameData(), rx.getDataOffset() + 1, rx.getDataLength() - 1);
+        // display when the last fragment of the page arrives
+        if (receivePayload()) {
+          menuIsDisplayed = false;
+        
+          lcd.clear();
         
-         if (rx.getData(0) & 1) {
-          // next page is available
-          nextPage = true;
+          printPayload();
+        
+           if (messageStatus & 1) {
+            // next page is available
+            nextPage = true;
                       
-          // print continuation marker
-          lcd.setCursor(4, 19);
-          lcd.print(rightArrow);
-        } else {
-          nextPage = false;
-        }
+            // print continuation marker
+            lcd.setCursor(4, 19);
+            lcd.print(rightArrow);
+          } else {
+            nextPage = false;
+          }
         
-        // check if led alert bit is on (2nd bit)
-        if (rx.getData(0) & (1 << 1)) {
-          // turn on alert LED
-          digitalWrite(alertLedPin, HIGH);
-          flashAlertLed = true;
-        }
+          // check if led alert bit is on (2nd bit)
+          if (messageStatus & (1 << 1)) {
+            // turn on alert LED
+            digitalWrite(alertLedPin, HIGH);
+            flashAlertLed = true;
+          }
 
-        // check if buzzer bit is on
-        if (rx.getData(0) & (1 << 2)) {
-          // turn on buzzer
-          soundBuzzer = true;
+          // check if buzzer bit is on
+          if (messageStatus & (1 << 2)) {
+            // turn on buzzer
+            soundBuzzer = true;
+          }
         }
         
       } else if (xbee.getResponse().getApiId() == MODEM_STATUS_RESPONSE) {
@@ -19,25 +19,48 @@
 
 package com.rapplogic.droplet.framework;
 
-import java.util.HashMap;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
-import java.util.concurrent.DelayQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.log4j.Logger;
 
+import com.rapplogic.droplet.framework.internal.AdaptiveSchedule;
+import com.rapplogic.droplet.framework.internal.AlertCoalescer;
+import com.rapplogic.droplet.framework.internal.AsyncTransmitter;
+import com.rapplogic.droplet.framework.internal.CircuitBreaker;
 import com.rapplogic.droplet.framework.internal.ContentHistory;
 import com.rapplogic.droplet.framework.internal.ContentHistoryMap;
 import com.rapplogic.droplet.framework.internal.ContentHistory.PageNotFoundException;
+import com.rapplogic.droplet.framework.internal.DelayedAlertJournal;
+import com.rapplogic.droplet.framework.internal.DelayedAlertQueue;
+import com.rapplogic.droplet.framework.internal.DeliveryFuture;
+import com.rapplogic.droplet.framework.internal.DeliveryLanes;
+import com.rapplogic.droplet.framework.internal.MergedAlert;
+import com.rapplogic.droplet.framework.internal.MissedAlertQueue;
+import com.rapplogic.droplet.framework.internal.QuietHoursGate;
+import com.rapplogic.droplet.framework.internal.RemoteAlert;
+import com.rapplogic.droplet.framework.internal.ScreenShadow;
+import com.rapplogic.droplet.framework.internal.ServiceBulkhead;
+import com.rapplogic.droplet.framework.internal.ServiceRegistry;
+import com.rapplogic.droplet.framework.internal.ServiceThreads;
+import com.rapplogic.droplet.framework.internal.DeliveryListener;
 import com.rapplogic.droplet.framework.service.Alert;
+import com.rapplogic.droplet.framework.service.CachingPullService;
 import com.rapplogic.droplet.framework.service.DelayedAlert;
 import com.rapplogic.droplet.framework.service.DelayedAlertPushService;
 import com.rapplogic.droplet.framework.service.OneTimeService;
@@ -46,13 +69,15 @@ import com.rapplogic.droplet.framework.service.PushService;
 import com.rapplogic.droplet.framework.service.RealtimeAlertPushService;
 import com.rapplogic.droplet.framework.service.RecurringService;
 import com.rapplogic.droplet.framework.service.RunnablePushService;
+import com.rapplogic.droplet.framework.text.Content;
 import com.rapplogic.droplet.framework.text.ContentFormatter;
+import com.rapplogic.droplet.framework.text.PackedText;
 import com.rapplogic.droplet.framework.text.IContent;
 import com.rapplogic.xbee.api.ApiId;
 import com.rapplogic.xbee.api.XBee;
+import com.rapplogic.xbee.api.XBeeAddress64;
 import com.rapplogic.xbee.api.XBeeException;
 import com.rapplogic.xbee.api.XBeeResponse;
-import com.rapplogic.xbee.api.XBeeTimeoutException;
 import com.rapplogic.xbee.api.zigbee.ZNetRxResponse;
 import com.rapplogic.xbee.api.zigbee.ZNetTxRequest;
 import com.rapplogic.xbee.api.zigbee.ZNetTxStatusResponse;
@@ -113,18 +138,13 @@ import com.rapplogic.xbee.util.ByteUtils;
  * 
  * TODO database for recording events/jetty server for access event history, configuration etc.
  * TODO arduino pin to control backlight
- * TODO jmx instrumentation
- * TODO stats pull service (how long droplet has been running, #pull/push requests, delivery errors, timeouts etc.)
  * TODO ideally the remote Arduino should request the menu/service ids from this application.  this would greatly ease updates
- * TODO missed queue: alerts that are undeliverable should queue until the radio comes back online, then get merged and sent
- * TODO support delivery of an alert to multiple radios (e.g. google calendar goes to bedroom and office remotes)
  * TODO google talk service
  * TODO broadcast alerts/messages from one end device to another
  * TODO asynchronous pull service.  this is a long running pull service, like kick off build.  user receives immediate reply then alert is sent when task completes
  * TODO capability to send parameters to service (user would use up/down buttons to specify value alpha or numeric to send to service
  *      we have a lot of payload space for request packets (arduino to service)
  * TODO generic rss service
- * TODO set quiet period (e.g. 10pm-6am) where sound alarm is ignored
  * TODO node discover on startup and keep track of what remote device have connected
  * TODO support series 1 XBee
  * TODO backlight on/off and XBee sleep
@@ -159,21 +179,26 @@ Caused by: com.rapplogic.droplet.framework.DeliveryException: Packet delivery fa
 public class Droplet implements ServiceContext, Runnable {
 
 	private final static Logger log = Logger.getLogger(Droplet.class);
-	private HashMap<Integer, PullService> serviceMap = new HashMap<Integer, PullService>();
+	
+	/**
+	 * Pull and push services.  Dispatch looks up services without locking
+	 */
+	private final ServiceRegistry registry = new ServiceRegistry();
+	
+	/**
+	 * Pull service executions in progress, by service id and request parameters
+	 */
+	private final ConcurrentHashMap<String, PullExecution> inFlightPulls = new ConcurrentHashMap<String, PullExecution>();
 	
 	// stat variables
-	private final long appStartupTime = System.currentTimeMillis();
-	private int deliveryFailures;
-	private int pullTimeouts;
-	private int pullMessages;
-	private int pushAlerts;
-	private int pullAppErrors;
-	private int nextPrevPageHits;
+	private final DropletMetrics metrics = new DropletMetrics();
 
 	private final XBee xbee = new XBee();
 	
+	// alerts are prioritized in the delivery lanes, where they wait for the radio
 	private BlockingQueue<Alert> alertQueue = new LinkedBlockingQueue<Alert>();
-	private DelayQueue<DelayedAlert> delayedAlertQueue = new DelayQueue<DelayedAlert>();
+	private DelayedAlertQueue delayedAlertQueue = new DelayedAlertQueue();
+	private DelayedAlertJournal delayedAlertJournal;
 	
 	private ContentHistoryMap contentMap = new ContentHistoryMap();
 	
@@ -181,25 +206,171 @@ public class Droplet implements ServiceContext, Runnable {
 	
 	private int sendTimeout = 10000;
 
-	private final ContentFormatter formatter = new ContentFormatter();
+	private final ContentFormatter formatter = new ContentFormatter() {
+		@Override
+		public IContent format(String text) {
+			long start = System.nanoTime();
+			
+			try {
+				return super.format(text);
+			} finally {
+				metrics.recordSince(DropletMetrics.Stage.FORMATTING, start);
+			}
+		}
+	};
 
 	private int pullServiceThreads = 3;
 	private int pushServiceThreads = 2;
+	private long pushServiceTimeoutMillis = 120000;
+	
+	private ExecutionMode executionMode = ExecutionMode.PLATFORM;
+	
+	// set when the first service is registered, after which the execution mode may not change
+	private boolean servicesRegistered;
 	
 	/**
 	 * Thread pool for servicing pull requests.  Handles timeout if service exceeds serviceTimeoutMillis
-	 * TODO move creation after constructor and allow for num threads to be user-defined
+	 * In VIRTUAL mode each request runs on its own virtual thread
 	 */
 	private ExecutorService pullServiceThreadPool = Executors.newFixedThreadPool(pullServiceThreads);
 	
+	/**
+	 * Schedules push services.  It only triggers executions, which run on serviceExecutor in each service's bulkhead
+	 */
 	private ScheduledThreadPoolExecutor pushServiceThreadPool = new ScheduledThreadPoolExecutor(pushServiceThreads);
 	
+	/**
+	 * Runs RunnablePushServices and push service executions, each on its own thread (virtual in VIRTUAL mode)
+	 */
+	private ExecutorService serviceExecutor = ServiceThreads.newThreadPerTaskExecutor("Push Service");
+	
+	/**
+	 * Single thread for framework timeouts (e.g. TX Status Response timeout).  Tasks must not block
+	 */
+	private final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1);
+	
+	/**
+	 * Sends TX requests asynchronously and correlates TX Status Responses by frame id
+	 */
+	private final AsyncTransmitter transmitter = new AsyncTransmitter(xbee, timer);
+	
+	/**
+	 * Per-remote queues for alerts and pull responses, so that an offline remote does not hold up other remotes
+	 */
+	private final DeliveryLanes lanes = new DeliveryLanes(new DeliveryLanes.Transport() {
+		public DeliveryFuture transmit(Message message) {
+			return Droplet.this.transmit(message, false);
+		}
+	});
+	
+	/**
+	 * Alerts that could not be delivered, until the remote is reachable again
+	 */
+	private final MissedAlertQueue missedAlerts = new MissedAlertQueue(timer, new MissedAlertQueue.Redelivery() {
+		public void redeliver(Alert alert) {
+			if (quietHoursGate.hold(alert)) {
+				// it goes out with the digest when quiet hours end, and back to the missed queue if that fails
+				missedAlerts.handedOff(alert.getRemoteXBeeAddress());
+			} else {
+				redeliverMissedAlert(alert);
+			}
+		}
+	});
+	
+	/**
+	 * Fails deliveries to a remote immediately after it fails several in a row, until it is reachable again.
+	 * When a probe is due, the remote's missed alerts are sent as the probe
+	 */
+	private final CircuitBreaker circuitBreaker = new CircuitBreaker(timer, new CircuitBreaker.Probe() {
+		public void probe(XBeeAddress64 remote) {
+			missedAlerts.retry(remote);
+		}
+	});
+	
+	/**
+	 * Holds non-emergency alerts during quiet hours
+	 */
+	private final QuietHoursGate quietHoursGate = new QuietHoursGate(timer, new QuietHoursGate.Release() {
+		public void release(Alert digest) {
+			sendRemoteAlertToXBee(digest);
+		}
+	});
+	
+	/**
+	 * Reports the activity of cached pull services to the metrics
+	 */
+	private final CachingPullService.Listener cacheListener = new CachingPullService.Listener() {
+		public void hit() {
+			metrics.incrementCacheHits();
+		}
+		
+		public void staleHit() {
+			metrics.incrementCacheStaleHits();
+		}
+		
+		public void miss() {
+			metrics.incrementCacheMisses();
+		}
+		
+		public void refreshed(long nanos) {
+			metrics.getHistogram(DropletMetrics.Stage.CACHE_REFRESH).record(nanos);
+		}
+	};
+	
+	private double maxIdlePollFactor = 4;
+	private double maxErrorPollFactor = 16;
+	private double pollJitter = 0.1;
+	
+	/**
+	 * Combines alerts for the same remote that arrive close together
+	 */
+	private final AlertCoalescer alertCoalescer = new AlertCoalescer(timer, 1000, new AlertCoalescer.Release() {
+		public void release(Alert alert) {
+			// quiet hours may have started during the window
+			if (!quietHoursGate.hold(alert)) {
+				sendRemoteAlertToXBee(alert);
+			}
+		}
+	});
+	
+	private volatile boolean packedText = true;
+	
+	// remotes that advertised they can decode packed text
+	private final ConcurrentHashMap<String, Boolean> packedTextRemotes = new ConcurrentHashMap<String, Boolean>();
+	
+	// remotes that advertised they can apply deltas
+	private final ConcurrentHashMap<String, Boolean> deltaRemotes = new ConcurrentHashMap<String, Boolean>();
+	
+	/**
+	 * What each remote's screen shows, for delta frames
+	 */
+	private final ScreenShadow screenShadow = new ScreenShadow(formatter.getLcdProperties().getNumLines(), formatter.getLcdProperties().getLineSize());
+	
+	// fragment number is 4 bits
+	private final static int MAX_FRAGMENTS = 16;
+	
+	private int maxPayloadSize = 84;
+	
 	private Thread alertThread;
 	private Thread delayedAlertThread;
 	
 	private boolean disableXBee;
 	
 	public Droplet() {
+		// pump lanes that are waiting on the window when a slot frees up
+		transmitter.setWindowListener(new Runnable() {
+			public void run() {
+				lanes.pump();
+			}
+		});
+		
+		// a timeout that was too short doesn't mean the remote is unreachable
+		transmitter.setLateDeliveryListener(new AsyncTransmitter.LateDeliveryListener() {
+			public void delivered(DeliveryFuture future) {
+				circuitBreaker.success(future.getMessage().getRemoteXBeeAddress());
+			}
+		});
+		
 		alertThread = new Thread(this);
 		alertThread.setName("Alert Thread");
 		alertThread.start();		
@@ -209,47 +380,104 @@ public class Droplet implements ServiceContext, Runnable {
 		delayedAlertThread.start();		
 		
 		formatter.setContinuationCharSize(1);
+		
+		lanes.setWaitHistogram(metrics.getHistogram(DropletMetrics.Stage.ALERT_QUEUE_WAIT));
+		metrics.registerMBean();
 	}
 	
-	public void registerPullService(Integer serviceId, PullService service) {
-		if (serviceMap.get(serviceId) != null) {
-			throw new IllegalArgumentException("Service already exists for id " + serviceId + ".  Use unregisterService first");
+	/**
+	 * Selects how services are run.  Must be called before any service is registered.  Default is PLATFORM
+	 * 
+	 * @param executionMode
+	 */
+	public synchronized void setExecutionMode(ExecutionMode executionMode) {
+		if (servicesRegistered) {
+			throw new IllegalStateException("Execution mode must be set before services are registered");
+		}
+		
+		if (executionMode == this.executionMode) {
+			return;
+		}
+		
+		ExecutorService old = pullServiceThreadPool;
+		ScheduledThreadPoolExecutor oldPush = pushServiceThreadPool;
+		ExecutorService oldService = serviceExecutor;
+		
+		if (executionMode == ExecutionMode.VIRTUAL) {
+			pullServiceThreadPool = ServiceThreads.newVirtualThreadPerTaskExecutor("Pull Service");
+			serviceExecutor = ServiceThreads.newVirtualThreadPerTaskExecutor("Push Service");
+			// only triggers executions, so one thread is plenty
+			pushServiceThreadPool = new ScheduledThreadPoolExecutor(1);
+		} else {
+			pullServiceThreadPool = Executors.newFixedThreadPool(pullServiceThreads);
+			serviceExecutor = ServiceThreads.newThreadPerTaskExecutor("Push Service");
+			pushServiceThreadPool = new ScheduledThreadPoolExecutor(pushServiceThreads);
 		}
 		
-		serviceMap.put(serviceId, service);
+		old.shutdown();
+		oldPush.shutdown();
+		oldService.shutdown();
+		
+		this.executionMode = executionMode;
+		
+		log.info("Execution mode is " + executionMode + (executionMode == ExecutionMode.VIRTUAL && !ServiceThreads.isVirtualThreadSupported() ? " (virtual threads not supported, using platform threads)" : ""));
+	}
+	
+	public synchronized ExecutionMode getExecutionMode() {
+		return executionMode;
+	}
+	
+	public synchronized void registerPullService(Integer serviceId, PullService service) {
+		servicesRegistered = true;
+		registry.registerPullService(serviceId, service);
+	}
+	
+	public synchronized void registerPullService(Integer serviceId, PullService service, long ttlMillis) {
+		this.registerPullService(serviceId, new CachingPullService(service, ttlMillis, pullServiceThreadPool, cacheListener));
+	}
+	
+	/**
+	 * Swaps the pull service for this id at runtime, or registers it if there is none.  Requests received 
+	 * after this call go to the new service.  Requests in progress complete on the old service
+	 * 
+	 * @return the service that was replaced, or null
+	 */
+	public synchronized PullService replacePullService(Integer serviceId, PullService service) {
+		servicesRegistered = true;
+		PullService old = registry.replacePullService(serviceId, service);
+		log.info("Replaced pull service for id " + serviceId);
+		return old;
+	}
+	
+	public synchronized PullService replacePullService(Integer serviceId, PullService service, long ttlMillis) {
+		return this.replacePullService(serviceId, new CachingPullService(service, ttlMillis, pullServiceThreadPool, cacheListener));
 	}
 	
 	public void unRegisterPullService(Integer serviceId) {
-		if (serviceMap.get(serviceId) == null) {
-			throw new IllegalArgumentException("Service does not exist for id " + serviceId);
-		}
-		
-		serviceMap.remove(serviceId);
+		registry.unRegisterPullService(serviceId);
 	}
 	
-	static abstract class PushServiceRunnable implements Runnable {
+	static abstract class PushServiceRunnable implements Runnable, AdaptiveSchedule.Task {
 		
 		PushService service;
 		ServiceContext sc;
-		long lastCall;
-		int minTimeBetweenCalls = 100;
 		
 		PushServiceRunnable(ServiceContext sc, PushService service) {
 			this.sc = sc;
 			this.service = service;
 		}
 
-		protected abstract void executeService(ServiceContext sc, PushService service);
+		protected abstract AdaptiveSchedule.Outcome executeService(ServiceContext sc, PushService service);
 		
 		public void run() {
-			
-			if (System.currentTimeMillis() - lastCall < minTimeBetweenCalls) {
-				log.warn("Service [" + service + "] is attempting to run too soon after last execution.  Typically this occurs if the computer has been put in sleep/suspend mode, where the thread pool attempts to make up missed calls");
-			} else {
-				executeService(sc, service);
-			}
-			
-			lastCall = System.currentTimeMillis();
+			this.execute();
+		}
+		
+		/**
+		 * Executions missed after sleep/suspend are handled by the service's MissedExecutionPolicy, see AdaptiveSchedule
+		 */
+		public AdaptiveSchedule.Outcome execute() {
+			return executeService(sc, service);
 		}
 	}
 	
@@ -260,17 +488,25 @@ public class Droplet implements ServiceContext, Runnable {
 		}
 
 		@Override
-		protected void executeService(ServiceContext sc, PushService service) {
+		protected AdaptiveSchedule.Outcome executeService(ServiceContext sc, PushService service) {
 			try {
 				log.debug("executing RealtimeAlertPushService: " + service);
 				Alert alert = ((RealtimeAlertPushService)service).execute(sc);
 
 				if (alert != null) {
+					if (!service.isCoalesceAlerts()) {
+						alert.setCoalesce(false);
+					}
+					
 					log.info("Adding alert to alert queue: " + alert);
 					sc.sendAlert(alert);
+					return AdaptiveSchedule.Outcome.ALERT;
 				}
+				
+				return AdaptiveSchedule.Outcome.NO_ALERT;
 			} catch (Exception ex) {
 				log.error("Error in RealtimeAlertPushService", ex);
+				return AdaptiveSchedule.Outcome.ERROR;
 			}
 		}		
 	}
@@ -282,7 +518,7 @@ public class Droplet implements ServiceContext, Runnable {
 		}
 
 		@Override
-		protected void executeService(ServiceContext sc, PushService service) {
+		protected AdaptiveSchedule.Outcome executeService(ServiceContext sc, PushService service) {
 			
 			try {
 				log.debug("executing DelayedAlertPushService: " + service);
@@ -292,61 +528,137 @@ public class Droplet implements ServiceContext, Runnable {
 //				for (DelayedAlert alert : delayedAlertQueue) {
 //					log.debug("delayedAlertQueue: " + alert);
 //				}
+				
+				// delayed services don't return alerts, and don't back off when idle (see startPushService)
+				return AdaptiveSchedule.Outcome.NO_ALERT;
 			} catch (Exception ex) {
 				log.error("Error in DelayedAlertPushService", ex);
+				return AdaptiveSchedule.Outcome.ERROR;
 			}
 		}		
 	}
 	
+	/**
+	 * Gives each push service its own bulkhead, which runs its executions on serviceExecutor with a deadline
+	 */
+	private ServiceBulkhead createBulkhead(PushService service, long timeoutMillis) {
+		return new ServiceBulkhead(service.getName(), serviceExecutor, timer, timeoutMillis, new ServiceBulkhead.Listener() {
+			public void executed(long nanos) {
+				metrics.getHistogram(DropletMetrics.Stage.PUSH_EXECUTION).record(nanos);
+			}
+			
+			public void timedOut() {
+				metrics.incrementPushTimeouts();
+				metrics.incrementStuckPushServices();
+			}
+			
+			public void recovered() {
+				metrics.decrementStuckPushServices();
+			}
+		});
+	}
+	
 	/**
 	 * Registers a push service and returns the runnable wrapper object that 
-	 * was added to the queue.
+	 * was added to the queue.  Executions that run longer than getPushServiceTimeoutMillis() are interrupted
 	 */
 	public Runnable registerPushService(final PushService service) {
+		return this.registerPushService(service, this.getPushServiceTimeoutMillis());
+	}
+	
+	/**
+	 * Registers a push service whose executions are interrupted after timeoutMillis (0 for no deadline).
+	 * Each service runs on its own thread, so a service that hangs only delays itself.  
+	 * RunnablePushServices run for the life of the app and have no deadline
+	 */
+	public synchronized Runnable registerPushService(final PushService service, long timeoutMillis) {
+		
+		servicesRegistered = true;
+		
+		Runnable runnable = this.createPushRunnable(service);
+		registry.addPushService(runnable, this.startPushService(service, runnable, timeoutMillis));
+		
+		log.info("Registering push service: " + service);
+		
+		return runnable;
+	}
+	
+	/**
+	 * Replaces a push service at runtime: the new service is started and the old one is stopped.  An execution of the old 
+	 * service that is in progress is allowed to finish.  RunnablePushServices are interrupted.
+	 * 
+	 * @param old runnable returned when the old service was registered
+	 * @return the runnable to use to unregister or replace the new service
+	 * @throws IllegalArgumentException if the old service is not registered
+	 */
+	public Runnable replacePushService(Runnable old, PushService service) {
+		return this.replacePushService(old, service, this.getPushServiceTimeoutMillis());
+	}
+	
+	public synchronized Runnable replacePushService(Runnable old, PushService service, long timeoutMillis) {
+		Runnable runnable = this.createPushRunnable(service);
+		
+		if (!registry.replacePushService(old, runnable, this.startPushService(service, runnable, timeoutMillis))) {
+			throw new IllegalArgumentException("Push service is not registered");
+		}
 		
-		Runnable runnable;
+		log.info("Replaced push service with: " + service);
 		
+		return runnable;
+	}
+	
+	private Runnable createPushRunnable(PushService service) {
 		if (service instanceof RealtimeAlertPushService) {
 			// package service execution in a Runnable and schedule
-			runnable = new RealTimeAlertRunnable(this, service);
+			return new RealTimeAlertRunnable(this, service);
 		} else if (service instanceof DelayedAlertPushService) {
-			runnable = new DelayedAlertRunnable(this, service);
+			return new DelayedAlertRunnable(this, service);
 		} else if (service instanceof RunnablePushService) {
-			runnable = (Runnable) service;
-		} else {
-			throw new IllegalArgumentException("Unsupported Push Service: " + service.getClass().getName());
+			return (Runnable) service;
 		}
-
-		Future<?> sf;
 		
+		throw new IllegalArgumentException("Unsupported Push Service: " + service.getClass().getName());
+	}
+	
+	private ServiceRegistry.PushRegistration startPushService(PushService service, final Runnable runnable, long timeoutMillis) {
 		if (service instanceof RecurringService) {
-			RecurringService rs = (RecurringService) service;
+			// reschedules itself after each execution, adapting the interval to how often the service produces alerts.
+			// the scheduler only triggers the execution, which runs in the service's bulkhead
+			AdaptiveSchedule schedule = new AdaptiveSchedule((RecurringService) service, (AdaptiveSchedule.Task) runnable, 
+					pushServiceThreadPool, this.createBulkhead(service, timeoutMillis));
 			
-			if (rs.getType() == RecurringService.RecurringType.FIXED_DELAY) {
-				 sf = pushServiceThreadPool.scheduleAtFixedRate(runnable, rs.getInitialDelay(), rs.getDelay(), TimeUnit.MILLISECONDS);
-			} else {
-				sf = pushServiceThreadPool.scheduleAtFixedRate(runnable, rs.getInitialDelay(), rs.getDelay(), TimeUnit.MILLISECONDS);			
-			}
+			// a delayed alert service must poll at its delay or it misses reminders that are due sooner than the interval
+			schedule.setMaxIdleFactor(service instanceof DelayedAlertPushService ? 1 : maxIdlePollFactor);
+			schedule.setMaxErrorFactor(maxErrorPollFactor);
+			schedule.setJitter(pollJitter);
+			schedule.setMissedExecutionPolicy(service.getMissedExecutionPolicy(), service.getMaxReplayedExecutions());
+			
+			schedule.start();
+			return new ServiceRegistry.PushRegistration(service, schedule, null);
 		} else if (service instanceof OneTimeService) {
-			sf = pushServiceThreadPool.schedule(runnable, ((OneTimeService)service).getInitialDelay(),TimeUnit.MILLISECONDS);
+			final ServiceBulkhead bulkhead = this.createBulkhead(service, timeoutMillis);
+			
+			Future<?> sf = pushServiceThreadPool.schedule(new Runnable() {
+				public void run() {
+					bulkhead.execute(runnable);
+				}
+			}, ((OneTimeService)service).getInitialDelay(),TimeUnit.MILLISECONDS);
+			
+			return new ServiceRegistry.PushRegistration(service, null, sf);
 		} else if (service instanceof RunnablePushService) {
-			// increment threadpool size for this service
-			pushServiceThreadPool.setCorePoolSize(pushServiceThreadPool.getPoolSize() + 1);
+			// runs for the life of the app on its own thread (virtual in VIRTUAL mode), so it does not take a pool thread
 			((RunnablePushService) service).setServiceContext(this);
-			sf = pushServiceThreadPool.submit((Runnable)service);
-		} else {
-			throw new IllegalArgumentException("Unsupported service: " + service.getClass().getName());
+			return new ServiceRegistry.PushRegistration(service, null, serviceExecutor.submit(runnable));
 		}
 		
-		// if process runs for > delay, service will not execute second until first finishes but executes second as soon as first finishes
-		
-		log.info("Registering push service: " + service);
-		
-		return runnable;
+		throw new IllegalArgumentException("Unsupported service: " + service.getClass().getName());
 	}
 	
+	/**
+	 * Stops the push service.  An execution that is in progress is allowed to finish
+	 */
 	public boolean unRegisterPushService(Runnable runnable) {
-		return pushServiceThreadPool.remove(runnable);
+		return registry.removePushService(runnable);
 	}
 	
 	/**
@@ -370,46 +682,17 @@ public class Droplet implements ServiceContext, Runnable {
 					
 					this.sendAlertToXBee(alert);
 				} else if (Thread.currentThread() == delayedAlertThread) {
-					// Thread blocks here until an alert is available
+					// Thread blocks here until alerts are due.  alerts with the same time and destination addresses come out together
 					log.debug("delay thread waiting for alert");
-					DelayedAlert alert = delayedAlertQueue.take();
-					log.info("Delay Alert has emerged from queue " + alert);
+					List<DelayedAlert> due = delayedAlertQueue.takeBucket();
 					
-					// check if there are other alerts with the same time and destination address; if so merge content
-					int count = 0;
-					
-					synchronized (delayedAlertQueue) {
-						for (DelayedAlert inQueue : delayedAlertQueue) {
-							if (inQueue.getExpectedFireDate().getTime() == alert.getExpectedFireDate().getTime()) {
-								log.info("found delayAlert with same time.. will check xbee address after take: " + inQueue);
-								count++;
-							}
-						}
-						
-						// TODO TESTME alerts with same time but different XBee address must not get merged!
-						for (int i = 0; i < count; i++) {
-							// this should NOT block since it has the same targetDate
-							log.info("Expecting a immediate poll from delay queue to merge another alert that fires at the same time");
-							DelayedAlert simultaneousAlert = delayedAlertQueue.poll();
-							
-							if (simultaneousAlert == null) {
-								log.error("queue.poll returned null.  Was expecting a immediate poll from delay queue to merge another alert that fires at the same time");
-								continue;
-							}
-							
-							if (alert.getRemoteXBeeAddress().equals(simultaneousAlert.getRemoteXBeeAddress())) {
-								log.info("Merging content with first alert: " + simultaneousAlert.getContent().getPages());	
-								
-								// merge content
-								alert.getContent().getPages().addAll(simultaneousAlert.getContent().getPages());
-							} else {
-								log.debug("Found simultaneous alert but with XBee address, stuffing back in queue");
-								// TODO verify this will not be retrieved in next poll call in this loop.  if so may need to add one second to the delay
-								this.delayedAlertQueue.offer(simultaneousAlert);
-							}
-						}						
+					if (due.size() > 1) {
+						log.info("Merging " + due.size() + " delayed alerts that fire at the same time");
 					}
-
+					
+					Alert alert = MergedAlert.merge(due);
+					log.info("Delay Alert has emerged from queue " + alert);
+					
 					this.sendAlertToXBee(alert);
 				}
 			} catch (InterruptedException e) {
@@ -443,10 +726,14 @@ public class Droplet implements ServiceContext, Runnable {
 	 * The first byte of the RX packet determines the service id (e.g. weather, news)
 	 * This is the integer that the service was registered with (registerPullService(Integer serviceId..)
 	 * The second byte contains status information.  The first bit indicates if this is a next page 
-	 * request (1 = next page, 0 = n/a) 
+	 * request (1 = next page, 0 = n/a), the second a previous page request, the third bit that the remote
+	 * can decode packed text, the fourth that the remote's screen is out of sync and needs the current page, 
+	 * and the fifth that the remote can apply deltas
 	 * 
 	 * The payload of the outgoing request is structured as follows:
-	 * byte [0]: bit 1 if a next page is available, bit 2 if the led should flash, bit 3 if the buzzer should activate
+	 * byte [0]: bit 1 if a next page is available, bit 2 if the led should flash, bit 3 if the buzzer should activate,
+	 * bit 4 if a previous page is available, bit 5 if the character data is packed (see PackedText), 
+	 * bit 6 if the data is a delta of the remote's screen (see ScreenShadow), bit 7 if the packet is a fragment (see fragment)
 	 * byte [1-n] character data for display on LCD
 	 * </pre>
 	 */
@@ -462,6 +749,7 @@ public class Droplet implements ServiceContext, Runnable {
 				try {
 					// we wait here until a packet is received.
 					final XBeeResponse remoteRequest = xbee.getResponse();
+					final long rxTime = System.nanoTime();
 					
 					if (remoteRequest.getApiId() == ApiId.ZNET_RX_RESPONSE) {
 						
@@ -475,6 +763,18 @@ public class Droplet implements ServiceContext, Runnable {
 						// check if pagination request
 						final boolean nextPageRequest = ByteUtils.getBit(rx.getData()[1], 1);
 						final boolean previousPageRequest = ByteUtils.getBit(rx.getData()[1], 2);
+						
+						if (ByteUtils.getBit(rx.getData()[1], 3)) {
+							// remote can decode packed text
+							packedTextRemotes.put(rx.getRemoteAddress64().toString(), Boolean.TRUE);
+						}
+						
+						if (ByteUtils.getBit(rx.getData()[1], 5)) {
+							// remote can apply deltas
+							deltaRemotes.put(rx.getRemoteAddress64().toString(), Boolean.TRUE);
+						}
+						
+						final boolean resyncRequest = ByteUtils.getBit(rx.getData()[1], 4);
 
 						log.debug("Service id is " + serviceId + ", nextPageRequest is " + nextPageRequest + ", previousPageRequest is " + previousPageRequest + ", pagination byte is " + rx.getData()[1]);
 													
@@ -482,26 +782,33 @@ public class Droplet implements ServiceContext, Runnable {
 						Message message = new Message();
 						message.setRemoteXBeeAddress(rx.getRemoteAddress64());
 						
-						if (nextPageRequest || previousPageRequest) {
-							nextPrevPageHits++;
+						// the remote is up.  send anything it missed
+						circuitBreaker.remoteReachable(rx.getRemoteAddress64());
+						missedAlerts.remoteReachable(rx.getRemoteAddress64());
+						
+						if (resyncRequest) {
+							// the remote's screen doesn't match our shadow.  resend the current page in full
+							log.info("Remote " + rx.getRemoteAddress64() + " is out of sync.. resending current page");
+							screenShadow.invalidate(rx.getRemoteAddress64().toString());
+							currentPageRequest(message);
+							this.sendResponseToXBee(message);
+						} else if (nextPageRequest || previousPageRequest) {
+							metrics.incrementNextPrevPageHits();
 							paginationRequest(message, nextPageRequest);
+							
+							// returns immediately.  delivery failures are logged by the listener
+							this.sendResponseToXBee(message);
+							metrics.recordSince(DropletMetrics.Stage.RX_TO_DISPATCH, rxTime);
 						} else {
-							pullMessages++;
-							// exec service
-							executeService(serviceId, remoteRequest, message);									
-						}
-						
-						try {
-							this.sendToXBee(message);	
-						} catch (DeliveryException e) {
-							// FAIL!
-							deliveryFailures++;
-							// this is warn not error because well wireless is not 100% reliable
-							log.warn("Failed to return pull-service response to radio", e);
+							metrics.incrementPullMessages();
+							// exec service.  returns immediately; the response is sent when the service completes or times out
+							executeService(serviceId, remoteRequest, message, rxTime);									
 						}
 					} else if (remoteRequest.getApiId() == ApiId.ZNET_TX_STATUS_RESPONSE) {
-						// ignore
-						log.debug("ignoring tx status from synchronous send " + remoteRequest);
+						// complete the pending delivery for this frame id
+						if (!transmitter.handleTxStatus((ZNetTxStatusResponse) remoteRequest)) {
+							log.debug("ignoring tx status for unknown frame id " + remoteRequest);
+						}
 					} else {
 						// might you have other radios on same PAN ID/channel?
 						log.warn("Received unexpected packet " + remoteRequest);
@@ -515,7 +822,23 @@ public class Droplet implements ServiceContext, Runnable {
 		}
 	}
 
-	private void paginationRequest(Message message, boolean nextPageRequest) {
+	/**
+	 * Sets the message content to the current page of the remote's history
+	 */
+	private synchronized void currentPageRequest(Message message) {
+		ContentHistory history = contentMap.findByAddress(message.getRemoteXBeeAddress());
+		
+		// already in history.. don't store again
+		message.setStoreInHistory(false);
+		
+		if (history.isEmpty()) {
+			message.setContent(formatter.format("Sorry, but I lost your content.  Please request service from menu"));
+		} else {
+			message.setContent(history.getCurrent());
+		}
+	}
+	
+	private synchronized void paginationRequest(Message message, boolean nextPageRequest) {
 		// pagination request
 		
 		ContentHistory history = contentMap.findByAddress(message.getRemoteXBeeAddress());
@@ -551,23 +874,56 @@ public class Droplet implements ServiceContext, Runnable {
 		}
 	}
 	
-	private void executeService(final int serviceId, final XBeeResponse response, Message message) {
+	/**
+	 * Hands the request to the pull service thread pool and returns immediately.  The response is sent
+	 * by PendingResponse when the service completes, or when the service timeout expires, whichever is first.
+	 */
+	private void executeService(final int serviceId, final XBeeResponse response, Message message, final long rxTime) {
 		// find service
-		final PullService service = serviceMap.get(serviceId);
+		final PullService service = registry.getPullService(serviceId);
 		final ServiceContext sc = this;
 		
 		if (service == null) {
 			message.setContent(formatter.format("Service not defined for id: " + serviceId));
 			message.getContent().setErrorMessage(true);
-		} else {
+			this.sendResponseToXBee(message);
+			return;
+		}
+		
+		PendingResponse pending = null;
+		String key = this.getPullRequestKey(serviceId, response);
+		
+		// if the same request is already executing (e.g. several remotes pressed the same button), wait on its result
+		PullExecution existing = inFlightPulls.get(key);
+		
+		if (existing != null) {
+			pending = new PendingResponse(message, existing);
+			
+			if (existing.join(pending)) {
+				metrics.incrementCoalescedPulls();
+				log.debug("request for service [" + serviceId + "] is already executing.. waiting on its result");
+			} else {
+				// all earlier waiters timed out and it was cancelled
+				pending = null;
+			}
+		}
+		
+		if (pending == null) {
 			// The service is handled in a separate thread so that we can support a timeout
 			// if the request takes too long to process (i.e. network delay)
-			Future<IContent> future = pullServiceThreadPool.submit(new Callable<IContent>() {
+			PullExecution execution = new PullExecution(serviceId, key, new Callable<IContent>() {
 				public IContent call() {
+					metrics.recordSince(DropletMetrics.Stage.RX_TO_DISPATCH, rxTime);
+					long start = System.nanoTime();
+					
 					try {
-						return service.execute(serviceId, response, sc);
+						try {
+							return service.execute(serviceId, response, sc);	
+						} finally {
+							metrics.recordSince(DropletMetrics.Stage.SERVICE_EXECUTION, start);
+						}
 					} catch (Exception e) {
-						pullAppErrors++;
+						metrics.incrementPullAppErrors();
 						log.error("Exception in service request", e);
 						// display app error on LCD
 						IContent content = formatter.format("Application error: " + e.getMessage());
@@ -577,139 +933,446 @@ public class Droplet implements ServiceContext, Runnable {
 				}
 			});
 			
-			try {
-				//for testing only: result = future.get(5, TimeUnit.SECONDS);
-				// this will throw a timeout exception if the request takes longer than the service timeout
-				IContent content = future.get(this.getPullServiceTimeoutMillis(), TimeUnit.MILLISECONDS);
-				
-				if (content == null) {
-					content = formatter.format("Service did not return anything");
-				}
-				
-				message.setContent(content);
-				
-				log.debug("Service returned " + content);
-				
-				// return first page
-//				result = content.getFirstPage().getLcdFormattedText();
-				
-//				if (content.getPages().size() > 1) {
-//					// set continuation bit
-//					multiplePages = true;
-//				}											
-			} catch (ExecutionException e) {
-				log.error("Exception in callable", e);
-//				result = formatter.getFirstPage("Application Failure").getLcdFormattedText();
-				message.setContent(formatter.format("Application Failure"));
-				message.getContent().setErrorMessage(true);
-			} catch (TimeoutException e) {
-				pullTimeouts++;
-				log.warn("service type [" + serviceId + "] timeout.. cancelling request ");
-				future.cancel(true);
-//				result = formatter.getFirstPage("Application Timeout").getLcdFormattedText();
-				message.setContent(formatter.format("Application Timeout"));
-				message.getContent().setErrorMessage(true);
-			} catch (Exception e) {
-//				result = formatter.getFirstPage("Unexpected error: " + e.getMessage()).getLcdFormattedText();
-				message.setContent(formatter.format("Unexpected error: " + e.getMessage()));
-				message.getContent().setErrorMessage(true);
-			}
+			pending = new PendingResponse(message, execution);
+			execution.join(pending);
+			
+			inFlightPulls.put(key, execution);
+			pullServiceThreadPool.execute(execution);
 		}
+		
+		// this will respond with a timeout if the request takes longer than the service timeout
+		pending.timeout = timer.schedule(pending, this.getPullServiceTimeoutMillis(), TimeUnit.MILLISECONDS);
 	}
 	
-	private void sendAlertToXBee(Alert alert) {
-		try {
-			pushAlerts++;
-			this.sendToXBee(alert);
-		} catch (DeliveryException e) {
-			deliveryFailures++;
-			log.warn("Failed to send alert. remote may be offline: " + alert, e);
+	/**
+	 * Requests are identical if they have the same service id and parameters (RX data after the status byte) 
+	 */
+	private String getPullRequestKey(int serviceId, XBeeResponse response) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(serviceId);
+		
+		if (response instanceof ZNetRxResponse) {
+			int[] data = ((ZNetRxResponse) response).getData();
 			
-			try {
-				alert.handleError(e);	
-			} catch (Exception f) {}						
+			for (int i = 2; i < data.length; i++) {
+				sb.append(",");
+				sb.append(data[i]);
+			}
 		}
+		
+		return sb.toString();
 	}
 	
 	/**
-	 * Sends a string to the XBee for display on LCD
-	 * 
-	 * TODO return delivery status
-	 * 
-	 * @param message
-	 * @throws XBeeException
+	 * A pull service execution that notifies its PendingResponse(s) on completion.
+	 * More than one remote request may wait on the same execution.
 	 */
-	private synchronized void sendToXBee(Message message) {
-		try {
-			//log.debug("sendToXBee(): multiplePage is " + multiplePages + ", alertLed is " + alertLed + ", buzzer is " + buzzer + ", message is \n" + message);
-			log.debug("sendToXBee(): " + message.getContent().getCurrentPage().getLcdFormattedText());
-			
-			// kind of hacky but need to sneak an extra byte in there for the continuation/alert led bitset
-			int[] payload = ByteUtils.stringToIntArray("0" + message.getContent().getCurrentPage().getLcdFormattedText());
-			
-			// reset status byte
-			payload[0] = 0;
-			
-			if (message.isStoreInHistory() && !message.getContent().isErrorMessage()) {
-				// store in hash with remote address and service id as key
-				// next page won't work if content is not stored!
-				contentMap.store(message.getRemoteXBeeAddress(), message.getContent());				
+	class PullExecution extends FutureTask<IContent> {
+		
+		private final int serviceId;
+		private final String key;
+		private final List<PendingResponse> listeners = new ArrayList<PendingResponse>();
+		private boolean complete;
+		private boolean abandoned;
+		private int waiters;
+		
+		PullExecution(int serviceId, String key, Callable<IContent> callable) {
+			super(callable);
+			this.serviceId = serviceId;
+			this.key = key;
+		}
+		
+		/**
+		 * Adds a waiter.  Returns false if the execution was abandoned by all previous waiters
+		 */
+		boolean join(PendingResponse listener) {
+			synchronized (this) {
+				if (abandoned) {
+					return false;
+				}
+				
+				waiters++;
+				
+				if (!complete) {
+					listeners.add(listener);
+					return true;
+				}
 			}
-
-			ContentHistory history = contentMap.findByAddress(message.getRemoteXBeeAddress());
 			
-			// TODO problem is if message isn't stored in history, next page will always be false.  next page should always depend
-			// on current content only!
-			if (history.nextPageExists()) {
-				// set next page bit
-				payload[0] = payload[0] | 1;
+			listener.executionComplete(this);
+			return true;
+		}
+		
+		/**
+		 * Called when a waiter times out.  Cancels the execution when no one is left waiting
+		 */
+		void leave() {
+			synchronized (this) {
+				waiters--;
+				
+				if (waiters > 0 || complete) {
+					return;
+				}
+				
+				abandoned = true;
 			}
 			
-			if (message instanceof Alert && ((Alert)message).isFlashLed()) {
-				// set flash alert led bit
-				payload[0] = payload[0] | (1 << 1);
-			}
+			log.warn("service type [" + serviceId + "] timeout.. cancelling request ");
+			inFlightPulls.remove(key, this);
+			this.cancel(true);
+		}
+
+		@Override
+		protected void done() {
+			List<PendingResponse> toNotify;
 			
-			if (message instanceof Alert && ((Alert)message).isSoundAlarm()) {
-				// turn on buzzer bit
-				payload[0] = payload[0] | (1 << 2);
+			synchronized (this) {
+				complete = true;
+				toNotify = new ArrayList<PendingResponse>(listeners);
+				listeners.clear();
 			}
 			
-			if (history.previousPageExists()) {
-				// set previous page bit
-				payload[0] = payload[0] | (1 << 3);
+			// new requests must execute the service again
+			inFlightPulls.remove(key, this);
+			
+			for (PendingResponse listener : toNotify) {
+				listener.executionComplete(this);
+			}
+		}
+	}
+	
+	/**
+	 * Sends the response for one pull request: the service content if it completes in time, 
+	 * otherwise "Application Timeout".  Only the first of the two sends a response.
+	 * <p/>
+	 * Responses are sent from the pull service threads and the timer, while the main loop waits in 
+	 * XBee.getResponse() holding the XBee monitor, so nothing on the send path may lock the XBee object.
+	 */
+	class PendingResponse implements Runnable {
+		
+		private final Message message;
+		private final PullExecution execution;
+		private final AtomicBoolean responded = new AtomicBoolean();
+		volatile ScheduledFuture<?> timeout;
+		
+		PendingResponse(Message message, PullExecution execution) {
+			this.message = message;
+			this.execution = execution;
+		}
+		
+		void executionComplete(PullExecution execution) {
+			if (execution.isCancelled() || !responded.compareAndSet(false, true)) {
+				// already timed out
+				return;
 			}
 			
-			// build a request with the response data
-			ZNetTxRequest request = new ZNetTxRequest(message.getRemoteXBeeAddress(), payload);
+			if (timeout != null) {
+				timeout.cancel(false);
+			}
 			
-			log.info("Sending packet to Arduino: " + request);
-
-			if (!this.isDisableXBee()) {
-				ZNetTxStatusResponse response = (ZNetTxStatusResponse) xbee.sendSynchronous(request, sendTimeout);
-				// FIXME problem here is the main thread is already waiting on getResponse so it gets it first 
-				// and this thread is is left waiting, maybe for ever.
-				//xbee.getResponse();
+			try {
+				IContent content = execution.get();
 				
-				// update frame id for next request
-				request.setFrameId(xbee.getNextFrameId());
+				if (content == null) {
+					content = formatter.format("Service did not return anything");
+				} else {
+					// the execution may be shared by several remotes; each needs its own page index
+					content = new Content(content);
+				}
 				
-				log.info("Received TX Status Response " + response);
-
-				if (!response.isSuccess()) {
-					// packet failed.  log error
-					// it's easy to create this error by unplugging/powering off your remote xbee.  when doing so I get: packet failed due to error: ADDRESS_NOT_FOUND  
-					throw new DeliveryException("Packet delivery failed due to error: " + response.getDeliveryStatus());
-				}				
-			} else {
+				message.setContent(content);
+				
+				log.debug("Service returned " + content);
+			} catch (ExecutionException e) {
+				log.error("Exception in callable", e);
+				message.setContent(formatter.format("Application Failure"));
+				message.getContent().setErrorMessage(true);
+			} catch (Exception e) {
+				message.setContent(formatter.format("Unexpected error: " + e.getMessage()));
+				message.getContent().setErrorMessage(true);
+			}
+			
+			sendResponseToXBee(message);
+		}
+		
+		/**
+		 * Service timeout
+		 */
+		public void run() {
+			if (!responded.compareAndSet(false, true)) {
+				return;
+			}
+			
+			metrics.incrementPullTimeouts();
+			execution.leave();
+			
+			message.setContent(formatter.format("Application Timeout"));
+			message.getContent().setErrorMessage(true);
+			
+			sendResponseToXBee(message);
+		}
+	}
+	
+	/**
+	 * Queues the alert in the delivery lane of each of its remotes, so remotes are sent to in parallel.  
+	 * Returns immediately.
+	 */
+	private void sendAlertToXBee(Alert alert) {
+		metrics.incrementPushAlerts();
+		
+		for (Alert remoteAlert : RemoteAlert.fanOut(alert)) {
+			// during quiet hours, non-emergency alerts are sent as a digest when quiet hours end.
+			// otherwise they are combined with other alerts for the remote that arrive within the coalescing window
+			if (!quietHoursGate.hold(remoteAlert) && !alertCoalescer.hold(remoteAlert)) {
+				this.sendRemoteAlertToXBee(remoteAlert);
+			}
+		}
+	}
+	
+	/**
+	 * Queues an alert for a single remote.  If delivery fails, the alert goes to the missed queue
+	 */
+	private void sendRemoteAlertToXBee(final Alert alert) {
+		lanes.offer(alert, new DeliveryListener() {
+			public void deliveryComplete(DeliveryFuture future) {
+				if (future.isSuccess()) {
+					missedAlerts.remoteReachable(alert.getRemoteXBeeAddress());
+				} else {
+					metrics.incrementDeliveryFailures();
+					log.warn("Failed to send alert. remote may be offline.  Adding to missed queue: " + alert, future.getException());
+					missedAlerts.add(alert);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Sends the merged backlog of the missed queue
+	 */
+	private void redeliverMissedAlert(final Alert alert) {
+		lanes.offer(alert, new DeliveryListener() {
+			public void deliveryComplete(DeliveryFuture future) {
+				if (future.isSuccess()) {
+					missedAlerts.delivered(alert.getRemoteXBeeAddress());
+				} else {
+					metrics.incrementDeliveryFailures();
+					log.warn("Failed to send missed alerts to " + alert.getRemoteXBeeAddress(), future.getException());
+					missedAlerts.failed(alert.getRemoteXBeeAddress());
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Queues a pull-service response ahead of alerts for the remote.  Returns immediately
+	 */
+	private void sendResponseToXBee(Message message) {
+		lanes.offerResponse(message, new DeliveryListener() {
+			public void deliveryComplete(DeliveryFuture future) {
+				if (!future.isSuccess()) {
+					// FAIL!
+					metrics.incrementDeliveryFailures();
+					// this is warn not error because well wireless is not 100% reliable
+					log.warn("Failed to return pull-service response to radio", future.getException());
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Sends a string to the XBee for display on LCD.  Returns immediately; the returned future 
+	 * completes when the TX Status Response is received or the send timeout expires.
+	 * 
+	 * @param message
+	 * @param block if true, waits for room in the transmit window; otherwise returns null if the window is full 
+	 */
+	private DeliveryFuture transmit(Message message, boolean block) {
+		
+		if (this.isDisableXBee()) {
+			DeliveryFuture future = new DeliveryFuture(message);
+			
+			try {
+				// store in history so pagination still works
+				this.createTxRequests(message);
 				log.warn("XBee is disabled.  Message was not sent");
+				future.setResponse(null);
+			} catch (Exception e) {
+				future.setException(new DeliveryException("Unexpected error while transmitting message to radio", e));
 			}
-		} catch (XBeeTimeoutException e) {
-			// should never timeout since we allowed 10 seconds to send and local XBee delivers the response packet
-			throw new DeliveryException("Unable to send response to LCD.  Timeout after " + sendTimeout + " milliseconds");
+			
+			return future;
+		}
+		
+		DeliveryFuture future;
+		
+		try {
+			future = transmitter.reserve(message, block);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			future = new DeliveryFuture(message);
+			future.setException(new DeliveryException("Interrupted while waiting to transmit message to radio", e));
+			return future;
+		}
+		
+		if (future == null) {
+			// window is full
+			return null;
+		}
+		
+		if (!circuitBreaker.allow(message.getRemoteXBeeAddress())) {
+			// fails like the send would have.  alerts go to the missed queue
+			transmitter.fail(future, new DeliveryException("Remote " + message.getRemoteXBeeAddress() + " is unreachable (circuit open).  Message was not sent"));
+			return future;
+		}
+		
+		List<ZNetTxRequest> requests;
+		
+		try {
+			requests = this.createTxRequests(message);
 		} catch (Exception e) {
-			throw new DeliveryException("Unexpected error while transmitting message to radio", e);
+			transmitter.fail(future, new DeliveryException("Unexpected error while transmitting message to radio", e));
+			return future;
+		}
+		
+		final String remote = message.getRemoteXBeeAddress().toString();
+		
+		transmitter.send(future, requests, transmitter.getRoundTripEstimator().getTimeout(remote));
+		
+		future.addListener(new DeliveryListener() {
+			public void deliveryComplete(DeliveryFuture future) {
+				if (future.isSuccess()) {
+					metrics.recordSince(DropletMetrics.Stage.TX_TO_ACK, future.getSendTime());
+					circuitBreaker.success(future.getMessage().getRemoteXBeeAddress());
+				} else {
+					circuitBreaker.failure(future.getMessage().getRemoteXBeeAddress());
+					
+					// we don't know what the remote shows now
+					screenShadow.invalidate(remote);
+				}
+			}
+		});
+		
+		return future;
+	}
+	
+	/**
+	 * Builds the TX request for the current page of the message and stores the content in history.
+	 * Returns more than one request if the payload is larger than maxPayloadSize (see fragment)
+	 */
+	private synchronized List<ZNetTxRequest> createTxRequests(Message message) {
+		//log.debug("sendToXBee(): multiplePage is " + multiplePages + ", alertLed is " + alertLed + ", buzzer is " + buzzer + ", message is \n" + message);
+		log.debug("createTxRequests(): " + message.getContent().getCurrentPage().getLcdFormattedText());
+		
+		String text = message.getContent().getCurrentPage().getLcdFormattedText();
+		
+		int[] packed = null;
+		
+		if (packedText && packedTextRemotes.containsKey(message.getRemoteXBeeAddress().toString())) {
+			// null if the text has characters that can't be packed
+			packed = PackedText.pack(text);
+		}
+		
+		int[] payload;
+		
+		String remote = message.getRemoteXBeeAddress().toString();
+		int[] delta = null;
+		
+		if (deltaRemotes.containsKey(remote)) {
+			char[] screen = screenShadow.render(text);
+			// null unless smaller than the full page
+			delta = screenShadow.createDelta(remote, screen, packed != null ? Math.min(packed.length, text.length()) : text.length());
+			screenShadow.update(remote, screen);
+		}
+		
+		if (delta != null) {
+			payload = new int[delta.length + 1];
+			System.arraycopy(delta, 0, payload, 1, delta.length);
+			// set delta bit
+			payload[0] = 1 << 5;
+		} else if (packed != null && packed.length < text.length()) {
+			payload = new int[packed.length + 1];
+			System.arraycopy(packed, 0, payload, 1, packed.length);
+			// set packed text bit
+			payload[0] = 1 << 4;
+		} else {
+			// kind of hacky but need to sneak an extra byte in there for the continuation/alert led bitset
+			payload = ByteUtils.stringToIntArray("0" + text);
+			
+			// reset status byte
+			payload[0] = 0;
+		}
+		
+		if (message.isStoreInHistory() && !message.getContent().isErrorMessage()) {
+			// store in hash with remote address and service id as key
+			// next page won't work if content is not stored!
+			contentMap.store(message.getRemoteXBeeAddress(), message.getContent());				
+		}
+
+		ContentHistory history = contentMap.findByAddress(message.getRemoteXBeeAddress());
+		
+		// TODO problem is if message isn't stored in history, next page will always be false.  next page should always depend
+		// on current content only!
+		if (history.nextPageExists()) {
+			// set next page bit
+			payload[0] = payload[0] | 1;
+		}
+		
+		if (message instanceof Alert && ((Alert)message).isFlashLed()) {
+			// set flash alert led bit
+			payload[0] = payload[0] | (1 << 1);
 		}
+		
+		if (message instanceof Alert && ((Alert)message).isSoundAlarm()) {
+			// turn on buzzer bit
+			payload[0] = payload[0] | (1 << 2);
+		}
+		
+		if (history.previousPageExists()) {
+			// set previous page bit
+			payload[0] = payload[0] | (1 << 3);
+		}
+		
+		// build a request with the response data
+		return this.fragment(message.getRemoteXBeeAddress(), payload);
+	}
+	
+	/**
+	 * Splits a payload that is larger than maxPayloadSize into numbered fragments, for displays larger than 4x20.
+	 * Each fragment has the status byte, with the fragment bit (bit 7) set, then a header byte 
+	 * (fragment index in the high nibble, index of the last fragment in the low nibble), then the next part of the data.
+	 * The remote reassembles the data and applies the status byte of the last fragment.
+	 */
+	private List<ZNetTxRequest> fragment(XBeeAddress64 remoteXBeeAddress, int[] payload) {
+		List<ZNetTxRequest> requests = new ArrayList<ZNetTxRequest>();
+		
+		if (payload.length <= maxPayloadSize) {
+			requests.add(new ZNetTxRequest(remoteXBeeAddress, payload));
+			return requests;
+		}
+		
+		int chunk = maxPayloadSize - 2;
+		int data = payload.length - 1;
+		int count = (data + chunk - 1) / chunk;
+		
+		if (count > MAX_FRAGMENTS) {
+			throw new IllegalArgumentException("Page is too large to send: " + data + " bytes is more than " + MAX_FRAGMENTS + " fragments");
+		}
+		
+		for (int i = 0; i < count; i++) {
+			int length = Math.min(chunk, data - i * chunk);
+			int[] fragment = new int[length + 2];
+			
+			// set fragment bit
+			fragment[0] = payload[0] | (1 << 6);
+			fragment[1] = (i << 4) | (count - 1);
+			System.arraycopy(payload, 1 + i * chunk, fragment, 2, length);
+			
+			requests.add(new ZNetTxRequest(remoteXBeeAddress, fragment));
+		}
+		
+		log.debug("Sending page in " + count + " fragments");
+		
+		return requests;
 	}
 	
 	/**
@@ -717,9 +1380,14 @@ public class Droplet implements ServiceContext, Runnable {
 	 * If a response is in progress, it will be sent after a delay;
 	 * otherwise it will go immediately.
 	 * 
-	 * This alert is processed asynchronously, so you must override handleError to receive errors
-	 * 
-	 * TODO create priorites (DEFAULT, EMERGENCY), where emergency is sent immediately.
+	 * This alert is processed asynchronously, so you must override handleError to receive errors.
+	 * The alert is sent to each of its remotes (see Alert.addRemoteXBeeAddress) with a single formatting pass.
+	 * If a remote is offline, the alert waits in the missed queue and is sent, merged with other missed
+	 * alerts, when the remote is reachable again.  handleError is called if the alert is given up.
+	 * During quiet hours (see setQuietHours) only EMERGENCY alerts are sent right away.
+	 * <p/>
+	 * Alerts with EMERGENCY priority are taken from the queue before DEFAULT alerts and take
+	 * the next free TX slot.  DEFAULT alerts wait at most getMaxDefaultAlertWaitMillis() behind emergencies.
 	 */
 	public void sendAlert(Alert alert) {
 		alertQueue.offer(alert);
@@ -735,6 +1403,48 @@ public class Droplet implements ServiceContext, Runnable {
 		this.delayedAlertQueue.offer(alert);
 	}
 	
+	/**
+	 * Journals delayed alerts to the file so they survive a restart.  Alerts that were pending when the journal
+	 * was last written are scheduled again, and alerts that became due while Droplet was down are sent right away.
+	 * Call before registering push services.  Services may reschedule restored alerts with the same key.
+	 * 
+	 * @param file
+	 * @throws IOException
+	 */
+	public synchronized void setDelayedAlertJournal(File file) throws IOException {
+		if (delayedAlertJournal != null) {
+			throw new IllegalStateException("Delayed alert journal is already set");
+		}
+		
+		DelayedAlertJournal journal = new DelayedAlertJournal(file, formatter.getLcdProperties());
+		List<DelayedAlertJournal.Replayed> replayed = journal.open();
+		
+		delayedAlertQueue.setListener(journal);
+		delayedAlertJournal = journal;
+		
+		int overdue = 0;
+		
+		for (DelayedAlertJournal.Replayed alert : replayed) {
+			if (alert.getAlert().getExpectedFireDate().getTime() <= System.currentTimeMillis()) {
+				overdue++;
+			}
+			
+			delayedAlertQueue.schedule(alert.getKey(), alert.getAlert());
+		}
+		
+		if (overdue > 0) {
+			log.info(overdue + " delayed alerts became due while Droplet was down.. sending now");
+		}
+	}
+	
+	public void scheduleDelayedAlert(Object key, DelayedAlert alert) {
+		this.delayedAlertQueue.schedule(key, alert);
+	}
+	
+	public boolean cancelDelayedAlert(Object key) {
+		return this.delayedAlertQueue.cancel(key);
+	}
+	
 	/**
 	 * The pull service must respond within this amount of time or a timeout will occur 
 	 */
@@ -751,7 +1461,25 @@ public class Droplet implements ServiceContext, Runnable {
 	}
 	
 	/**
-	 * How long in milliseconds we wait after sending a packet to get an ACK before timing out
+	 * Push service executions are interrupted after this amount of time, unless a timeout is given when 
+	 * the service is registered.  Default is 2 minutes
+	 */
+	public long getPushServiceTimeoutMillis() {
+		return pushServiceTimeoutMillis;
+	}
+
+	public void setPushServiceTimeoutMillis(long pushServiceTimeoutMillis) {
+		if (pushServiceTimeoutMillis <= 0) {
+			throw new IllegalArgumentException("must be > 0");
+		}
+		
+		this.pushServiceTimeoutMillis = pushServiceTimeoutMillis;
+	}
+	
+	/**
+	 * How long in milliseconds we wait after sending a packet to get an ACK before timing out.
+	 * Each remote's timeout adapts to its measured ACK round trip time; this is the upper bound, 
+	 * and the timeout of a remote we have not heard an ACK from yet.
 	 */
 	public int getXBeeSendTimeout() {
 		return sendTimeout;
@@ -763,6 +1491,59 @@ public class Droplet implements ServiceContext, Runnable {
 		}
 		
 		this.sendTimeout = sendTimeout;
+		transmitter.getRoundTripEstimator().setMaxTimeoutMillis(sendTimeout);
+	}
+	
+	/**
+	 * Current send timeout of the remote, from its smoothed ACK round trip time
+	 */
+	public long getXBeeSendTimeout(XBeeAddress64 remoteXBeeAddress) {
+		return transmitter.getRoundTripEstimator().getTimeout(remoteXBeeAddress.toString());
+	}
+	
+	public long getMinXBeeSendTimeout() {
+		return transmitter.getRoundTripEstimator().getMinTimeoutMillis();
+	}
+	
+	/**
+	 * Lower bound of the adaptive send timeout.  Default is 3000.  Set to the send timeout to disable adapting
+	 */
+	public void setMinXBeeSendTimeout(long minSendTimeout) {
+		transmitter.getRoundTripEstimator().setMinTimeoutMillis(minSendTimeout);
+	}
+	
+	/**
+	 * Maximum number of TX requests that may await a TX Status Response at once
+	 */
+	public int getMaxInFlightTransmissions() {
+		return transmitter.getMaxInFlight();
+	}
+
+	public void setMaxInFlightTransmissions(int maxInFlight) {
+		transmitter.setMaxInFlight(maxInFlight);
+		lanes.pump();
+	}
+	
+	/**
+	 * Maximum number of alerts per remote that may await an ACK.  Default is 1, which keeps alerts to a remote in order
+	 */
+	public int getLaneBudget() {
+		return lanes.getLaneBudget();
+	}
+
+	public void setLaneBudget(int laneBudget) {
+		lanes.setLaneBudget(laneBudget);
+	}
+	
+	/**
+	 * Maximum number of alerts sent to one remote before the next remote gets a turn.  Default is 1
+	 */
+	public int getLaneQuantum() {
+		return lanes.getQuantum();
+	}
+
+	public void setLaneQuantum(int quantum) {
+		lanes.setQuantum(quantum);
 	}
 	
 	public ContentFormatter getFormatter() {
@@ -777,18 +1558,62 @@ public class Droplet implements ServiceContext, Runnable {
 		this.disableXBee = disableXBee;
 	}
 	
+	/**
+	 * A DEFAULT priority alert that has waited this long goes ahead of emergency alerts
+	 */
+	public long getMaxDefaultAlertWaitMillis() {
+		return lanes.getMaxNormalWaitMillis();
+	}
+
+	public void setMaxDefaultAlertWaitMillis(long maxDefaultWaitMillis) {
+		lanes.setMaxNormalWaitMillis(maxDefaultWaitMillis);
+	}
+	
+	/**
+	 * Maximum number of emergency alerts sent in a row while a DEFAULT priority alert is waiting
+	 */
+	public int getMaxEmergencyAlertBurst() {
+		return lanes.getMaxUrgentBurst();
+	}
+
+	public void setMaxEmergencyAlertBurst(int maxEmergencyBurst) {
+		lanes.setMaxUrgentBurst(maxEmergencyBurst);
+	}
+	
 	public BlockingQueue<Alert> getAlertQueue() {
 		return alertQueue;
 	}
 
-	public DelayQueue<DelayedAlert> getDelayedAlertQueue() {
+	public BlockingQueue<DelayedAlert> getDelayedAlertQueue() {
 		return delayedAlertQueue;
 	}
 
+	/**
+	 * Sends alerts held for coalescing and waits up to the XBee send timeout for queued deliveries before closing the radio.
+	 * Alerts held for quiet hours are dropped.
+	 */
 	public void shutdown() {
 		
 		log.info("this is shutdown");
 		
+		// send alerts waiting in a coalescing window while the radio is still open.  held quiet-hours alerts are dropped
+		alertCoalescer.flush();
+		quietHoursGate.discard("Alert dropped since Droplet is shutting down during quiet hours");
+		
+		long drainTimeout = System.currentTimeMillis() + this.getXBeeSendTimeout();
+		
+		while (lanes.getPendingCount() > 0 && System.currentTimeMillis() < drainTimeout) {
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		
+		if (lanes.getPendingCount() > 0) {
+			log.warn(lanes.getPendingCount() + " messages were not sent before shutdown");
+		}
+		
 		try {
 			xbee.close();
 		} catch (Exception e) {
@@ -803,10 +1628,23 @@ public class Droplet implements ServiceContext, Runnable {
 		
 		try {
 			this.pushServiceThreadPool.shutdown();
+			this.serviceExecutor.shutdown();
 		} catch (Exception e) {
 			log.warn("Push service failed to shutdown");
 		}
 		
+		metrics.unregisterMBean();
+		
+		if (delayedAlertJournal != null) {
+			delayedAlertJournal.close();
+		}
+		
+		try {
+			this.timer.shutdown();
+		} catch (Exception e) {
+			log.warn("Timer failed to shutdown");
+		}
+		
 		try {
 			this.alertThread.interrupt();
 		} catch (Exception e) {
@@ -822,31 +1660,222 @@ public class Droplet implements ServiceContext, Runnable {
 	
 	// stats
 	
+	/**
+	 * Counters and pipeline latencies.  Also available through JMX as com.rapplogic.droplet:type=Droplet
+	 */
+	public DropletMetrics getMetrics() {
+		return metrics;
+	}
+	
 	public long getAppStartupTime() {
-		return appStartupTime;
+		return metrics.getStartTime();
 	}
 
 	public int getPullMessages() {
-		return pullMessages;
+		return (int) metrics.getPullMessages();
 	}
 
 	public int getPushAlerts() {
-		return pushAlerts;
+		return (int) metrics.getPushAlerts();
 	}
 
 	public int getPullAppErrors() {
-		return pullAppErrors;
+		return (int) metrics.getPullAppErrors();
 	}
 
 	public int getDeliveryFailures() {
-		return deliveryFailures;
+		return (int) metrics.getDeliveryFailures();
+	}
+	
+	/**
+	 * Recurring push services poll less often, up to this many times their delay, while they produce no alerts.  
+	 * The interval returns to the delay when an alert is produced.  Default is 4.  1 polls at the service delay.
+	 * Applies to services registered after this is set.  DelayedAlertPushServices always poll at their delay
+	 */
+	public synchronized void setMaxIdlePollFactor(double maxIdlePollFactor) {
+		if (maxIdlePollFactor < 1) {
+			throw new IllegalArgumentException("must be >= 1");
+		}
+		
+		this.maxIdlePollFactor = maxIdlePollFactor;
+	}
+	
+	public synchronized double getMaxIdlePollFactor() {
+		return maxIdlePollFactor;
+	}
+	
+	/**
+	 * Recurring push services back off exponentially after errors, up to this many times their delay.  Default is 16.
+	 * Applies to services registered after this is set
+	 */
+	public synchronized void setMaxErrorPollFactor(double maxErrorPollFactor) {
+		if (maxErrorPollFactor < 1) {
+			throw new IllegalArgumentException("must be >= 1");
+		}
+		
+		this.maxErrorPollFactor = maxErrorPollFactor;
+	}
+	
+	public synchronized double getMaxErrorPollFactor() {
+		return maxErrorPollFactor;
+	}
+	
+	/**
+	 * Fraction of the interval each recurring execution may move earlier or later, so services with the same delay
+	 * don't poll together.  Default is 0.1.  Applies to services registered after this is set
+	 */
+	public synchronized void setPollJitter(double pollJitter) {
+		if (pollJitter < 0 || pollJitter >= 1) {
+			throw new IllegalArgumentException("must be >= 0 and < 1");
+		}
+		
+		this.pollJitter = pollJitter;
+	}
+	
+	public synchronized double getPollJitter() {
+		return pollJitter;
+	}
+	
+	/**
+	 * Alerts for the same remote that arrive within this many milliseconds of the first are sent as one 
+	 * multi-page alert.  Emergency alerts and alerts with coalesce=false are sent right away.  Default is 1000.  0 disables
+	 */
+	public void setAlertCoalescingWindowMillis(long windowMillis) {
+		alertCoalescer.setWindowMillis(windowMillis);
+	}
+	
+	public long getAlertCoalescingWindowMillis() {
+		return alertCoalescer.getWindowMillis();
+	}
+	
+	/**
+	 * Maximum alerts combined into one.  The alert is sent when this is reached, without waiting for the window.  Default is 10
+	 */
+	public void setMaxCoalescedAlerts(int maxAlerts) {
+		alertCoalescer.setMaxAlerts(maxAlerts);
+	}
+	
+	/**
+	 * If true (default), pages are sent to remotes that support it as 6-bit packed text (see PackedText), 
+	 * which takes 3/4 of the bytes.  Remotes advertise support in the status byte of their requests, so 
+	 * alerts are sent unpacked until a remote has made a request.  Pages with characters that can't be packed are sent unpacked
+	 */
+	public void setPackedText(boolean packedText) {
+		this.packedText = packedText;
+	}
+	
+	public boolean isPackedText() {
+		return packedText;
+	}
+	
+	/**
+	 * Payloads larger than this are sent as several fragments (see fragment).  Default is 84, the ZigBee maximum
+	 * without encryption, so a 4x20 page fits in one packet
+	 */
+	public synchronized void setMaxPayloadSize(int maxPayloadSize) {
+		if (maxPayloadSize < 3) {
+			throw new IllegalArgumentException("must be > 2");
+		}
+		
+		this.maxPayloadSize = maxPayloadSize;
+	}
+	
+	public synchronized int getMaxPayloadSize() {
+		return maxPayloadSize;
+	}
+	
+	/**
+	 * Sets a daily window (e.g. new QuietHours(22, 0, 6, 0)) during which non-emergency alerts are held.
+	 * When it ends, the held alerts for each remote are sent as one multi-page alert.  Null disables quiet hours
+	 * and sends any held alerts
+	 */
+	public void setQuietHours(QuietHours quietHours) {
+		quietHoursGate.setQuietHours(quietHours);
+	}
+	
+	public QuietHours getQuietHours() {
+		return quietHoursGate.getQuietHours();
+	}
+	
+	/**
+	 * Number of alerts held until quiet hours end
+	 */
+	public int getQuietHoursHeldCount() {
+		return quietHoursGate.getHeldCount();
+	}
+	
+	/**
+	 * Number of undelivered alerts waiting for their remote to come back
+	 */
+	public int getMissedAlertCount() {
+		return missedAlerts.size();
+	}
+	
+	/**
+	 * Maximum undelivered alerts held per remote.  The oldest alert is given up when full.  Default is 20
+	 */
+	public void setMaxMissedAlertsPerRemote(int maxAlerts) {
+		missedAlerts.setMaxAlertsPerRemote(maxAlerts);
+	}
+	
+	public int getMaxMissedAlertsPerRemote() {
+		return missedAlerts.getMaxAlertsPerRemote();
+	}
+	
+	/**
+	 * First retry of missed alerts.  Doubles after each failed retry up to maxRetryMillis
+	 */
+	public void setMissedAlertRetryMillis(long initialRetryMillis, long maxRetryMillis) {
+		missedAlerts.setInitialRetryMillis(initialRetryMillis);
+		missedAlerts.setMaxRetryMillis(maxRetryMillis);
+	}
+
+	/**
+	 * Consecutive delivery failures after which sends to a remote fail immediately, until it is reachable again.  Default is 3
+	 */
+	public void setCircuitBreakerThreshold(int failures) {
+		circuitBreaker.setFailureThreshold(failures);
+	}
+
+	public int getCircuitBreakerThreshold() {
+		return circuitBreaker.getFailureThreshold();
+	}
+
+	/**
+	 * First probe of an unreachable remote.  Doubles after each failed probe up to maxProbeMillis.
+	 * Default is 10 seconds, up to 10 minutes
+	 */
+	public void setCircuitBreakerProbeMillis(long initialProbeMillis, long maxProbeMillis) {
+		circuitBreaker.setInitialProbeMillis(initialProbeMillis);
+		circuitBreaker.setMaxProbeMillis(maxProbeMillis);
+	}
+
+	/**
+	 * Number of remotes we are not sending to since they appear to be offline
+	 */
+	public int getUnreachableRemoteCount() {
+		return circuitBreaker.getOpenCount();
+	}
+
+	/**
+	 * Deliveries that failed immediately since the remote appeared to be offline
+	 */
+	public long getShortCircuitedDeliveries() {
+		return circuitBreaker.getShortCircuits();
 	}
 
 	public int getPullTimeouts() {
-		return pullTimeouts;
+		return (int) metrics.getPullTimeouts();
 	}
 
 	public int getNextPrevPageHits() {
-		return nextPrevPageHits;
+		return (int) metrics.getNextPrevPageHits();
+	}
+	
+	/**
+	 * Number of pull requests that were answered by an execution already in progress
+	 */
+	public int getCoalescedPulls() {
+		return (int) metrics.getCoalescedPulls();
 	}
 }
\ No newline at end of file
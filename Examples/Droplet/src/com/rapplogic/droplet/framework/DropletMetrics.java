@@ -0,0 +1,386 @@
+/**
+ * Copyright (c) 2009 Andrew Rapp. All rights reserved.
+ *  
+ * This file is part of Droplet.
+ *  
+ * Droplet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * Droplet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License
+ * along with Droplet.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.droplet.framework;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+import com.rapplogic.droplet.framework.internal.LatencyHistogram;
+
+/**
+ * Counters and latency histograms for Droplet.  Counters are atomic and histograms are lock-free, 
+ * so they may be updated from any thread without contention.
+ * <p/>
+ * Use snapshot() for a consistent-enough copy to display (e.g. by a stats pull service), or JMX (see DropletMetricsMBean)
+ * 
+ * @author andrew
+ *
+ */
+public class DropletMetrics implements DropletMetricsMBean {
+
+	private final static Logger log = Logger.getLogger(DropletMetrics.class);
+	
+	public final static String OBJECT_NAME = "com.rapplogic.droplet:type=Droplet";
+	
+	/**
+	 * Pipeline stages that are timed
+	 */
+	public enum Stage {
+		/** packet received until the pull service starts (or pagination response is queued) */
+		RX_TO_DISPATCH,
+		/** pull service execute */
+		SERVICE_EXECUTION,
+		/** ContentFormatter.format */
+		FORMATTING,
+		/** TX request sent until TX status response */
+		TX_TO_ACK,
+		/** alert queued in its delivery lane until sent */
+		ALERT_QUEUE_WAIT,
+		/** push service execute */
+		PUSH_EXECUTION,
+		/** cached pull service execute, in the foreground on a miss or in the background when stale */
+		CACHE_REFRESH
+	}
+	
+	private final long startTime = System.currentTimeMillis();
+	
+	private final AtomicLong pullMessages = new AtomicLong();
+	private final AtomicLong pushAlerts = new AtomicLong();
+	private final AtomicLong pullAppErrors = new AtomicLong();
+	private final AtomicLong deliveryFailures = new AtomicLong();
+	private final AtomicLong pullTimeouts = new AtomicLong();
+	private final AtomicLong nextPrevPageHits = new AtomicLong();
+	private final AtomicLong coalescedPulls = new AtomicLong();
+	private final AtomicLong pushTimeouts = new AtomicLong();
+	private final AtomicLong stuckPushServices = new AtomicLong();
+	private final AtomicLong cacheHits = new AtomicLong();
+	private final AtomicLong cacheStaleHits = new AtomicLong();
+	private final AtomicLong cacheMisses = new AtomicLong();
+	
+	private final EnumMap<Stage, LatencyHistogram> histograms = new EnumMap<Stage, LatencyHistogram>(Stage.class);
+	
+	public DropletMetrics() {
+		for (Stage stage : Stage.values()) {
+			histograms.put(stage, new LatencyHistogram());
+		}
+	}
+	
+	/**
+	 * Registers this object with the platform MBean server
+	 */
+	public void registerMBean() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			
+			server.registerMBean(this, name);
+		} catch (Exception e) {
+			log.warn("Unable to register Droplet MBean", e);
+		}
+	}
+	
+	public void unregisterMBean() {
+		try {
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+		} catch (Exception e) {
+			log.warn("Unable to unregister Droplet MBean", e);
+		}
+	}
+	
+	public LatencyHistogram getHistogram(Stage stage) {
+		return histograms.get(stage);
+	}
+	
+	/**
+	 * Records the time since startNanos (a System.nanoTime() value) for the stage
+	 */
+	public void recordSince(Stage stage, long startNanos) {
+		histograms.get(stage).recordSince(startNanos);
+	}
+	
+	void incrementPullMessages() {
+		pullMessages.incrementAndGet();
+	}
+	
+	void incrementPushAlerts() {
+		pushAlerts.incrementAndGet();
+	}
+	
+	void incrementPullAppErrors() {
+		pullAppErrors.incrementAndGet();
+	}
+	
+	void incrementDeliveryFailures() {
+		deliveryFailures.incrementAndGet();
+	}
+	
+	void incrementPullTimeouts() {
+		pullTimeouts.incrementAndGet();
+	}
+	
+	void incrementNextPrevPageHits() {
+		nextPrevPageHits.incrementAndGet();
+	}
+	
+	void incrementCoalescedPulls() {
+		coalescedPulls.incrementAndGet();
+	}
+	
+	void incrementPushTimeouts() {
+		pushTimeouts.incrementAndGet();
+	}
+	
+	void incrementStuckPushServices() {
+		stuckPushServices.incrementAndGet();
+	}
+	
+	void decrementStuckPushServices() {
+		stuckPushServices.decrementAndGet();
+	}
+	
+	void incrementCacheHits() {
+		cacheHits.incrementAndGet();
+	}
+	
+	void incrementCacheStaleHits() {
+		cacheStaleHits.incrementAndGet();
+	}
+	
+	void incrementCacheMisses() {
+		cacheMisses.incrementAndGet();
+	}
+	
+	public long getStartTime() {
+		return startTime;
+	}
+	
+	public long getUptimeMillis() {
+		return System.currentTimeMillis() - startTime;
+	}
+	
+	public long getPullMessages() {
+		return pullMessages.get();
+	}
+
+	public long getPushAlerts() {
+		return pushAlerts.get();
+	}
+
+	public long getPullAppErrors() {
+		return pullAppErrors.get();
+	}
+
+	public long getDeliveryFailures() {
+		return deliveryFailures.get();
+	}
+
+	public long getPullTimeouts() {
+		return pullTimeouts.get();
+	}
+
+	public long getNextPrevPageHits() {
+		return nextPrevPageHits.get();
+	}
+
+	public long getCoalescedPulls() {
+		return coalescedPulls.get();
+	}
+
+	public long getPushTimeouts() {
+		return pushTimeouts.get();
+	}
+
+	public long getStuckPushServices() {
+		return stuckPushServices.get();
+	}
+
+	public long getCacheHits() {
+		return cacheHits.get();
+	}
+
+	public long getCacheStaleHits() {
+		return cacheStaleHits.get();
+	}
+
+	public long getCacheMisses() {
+		return cacheMisses.get();
+	}
+
+	public String[] getLatencySummary() {
+		String[] summary = new String[histograms.size()];
+		
+		int i = 0;
+		
+		for (Stage stage : histograms.keySet()) {
+			summary[i++] = stage + ": " + histograms.get(stage);
+		}
+		
+		return summary;
+	}
+
+	public long getLatencyMicros(String stage, double percentile) {
+		return histograms.get(Stage.valueOf(stage)).getPercentileMicros(percentile);
+	}
+	
+	/**
+	 * Copy of the counters and stage latencies at this time
+	 */
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+	
+	/**
+	 * Latency of one stage, in microseconds
+	 */
+	public static class StageSnapshot {
+		private final Stage stage;
+		private final long count;
+		private final long meanMicros;
+		private final long p50Micros;
+		private final long p99Micros;
+		private final long maxMicros;
+		
+		StageSnapshot(Stage stage, LatencyHistogram histogram) {
+			this.stage = stage;
+			this.count = histogram.getCount();
+			this.meanMicros = histogram.getMeanMicros();
+			this.p50Micros = histogram.getPercentileMicros(50);
+			this.p99Micros = histogram.getPercentileMicros(99);
+			this.maxMicros = histogram.getMaxMicros();
+		}
+		
+		public Stage getStage() {
+			return stage;
+		}
+		public long getCount() {
+			return count;
+		}
+		public long getMeanMicros() {
+			return meanMicros;
+		}
+		public long getP50Micros() {
+			return p50Micros;
+		}
+		public long getP99Micros() {
+			return p99Micros;
+		}
+		public long getMaxMicros() {
+			return maxMicros;
+		}
+	}
+	
+	/**
+	 * Immutable copy of the metrics
+	 */
+	public static class Snapshot {
+		private final long uptimeMillis;
+		private final long pullMessages;
+		private final long pushAlerts;
+		private final long pullAppErrors;
+		private final long deliveryFailures;
+		private final long pullTimeouts;
+		private final long nextPrevPageHits;
+		private final long coalescedPulls;
+		private final long pushTimeouts;
+		private final long stuckPushServices;
+		private final long cacheHits;
+		private final long cacheStaleHits;
+		private final long cacheMisses;
+		private final EnumMap<Stage, StageSnapshot> stages = new EnumMap<Stage, StageSnapshot>(Stage.class);
+		
+		Snapshot(DropletMetrics metrics) {
+			this.uptimeMillis = metrics.getUptimeMillis();
+			this.pullMessages = metrics.getPullMessages();
+			this.pushAlerts = metrics.getPushAlerts();
+			this.pullAppErrors = metrics.getPullAppErrors();
+			this.deliveryFailures = metrics.getDeliveryFailures();
+			this.pullTimeouts = metrics.getPullTimeouts();
+			this.nextPrevPageHits = metrics.getNextPrevPageHits();
+			this.coalescedPulls = metrics.getCoalescedPulls();
+			this.pushTimeouts = metrics.getPushTimeouts();
+			this.stuckPushServices = metrics.getStuckPushServices();
+			this.cacheHits = metrics.getCacheHits();
+			this.cacheStaleHits = metrics.getCacheStaleHits();
+			this.cacheMisses = metrics.getCacheMisses();
+			
+			for (Stage stage : Stage.values()) {
+				stages.put(stage, new StageSnapshot(stage, metrics.getHistogram(stage)));
+			}
+		}
+		
+		public long getUptimeMillis() {
+			return uptimeMillis;
+		}
+		public long getPullMessages() {
+			return pullMessages;
+		}
+		public long getPushAlerts() {
+			return pushAlerts;
+		}
+		public long getPullAppErrors() {
+			return pullAppErrors;
+		}
+		public long getDeliveryFailures() {
+			return deliveryFailures;
+		}
+		public long getPullTimeouts() {
+			return pullTimeouts;
+		}
+		public long getNextPrevPageHits() {
+			return nextPrevPageHits;
+		}
+		public long getCoalescedPulls() {
+			return coalescedPulls;
+		}
+		public long getPushTimeouts() {
+			return pushTimeouts;
+		}
+		public long getStuckPushServices() {
+			return stuckPushServices;
+		}
+		public long getCacheHits() {
+			return cacheHits;
+		}
+		public long getCacheStaleHits() {
+			return cacheStaleHits;
+		}
+		public long getCacheMisses() {
+			return cacheMisses;
+		}
+		public StageSnapshot getStage(Stage stage) {
+			return stages.get(stage);
+		}
+	}
+}
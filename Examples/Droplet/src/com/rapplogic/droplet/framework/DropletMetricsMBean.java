@@ -0,0 +1,67 @@
+/**
+ * Copyright (c) 2009 Andrew Rapp. All rights reserved.
+ *  
+ * This file is part of Droplet.
+ *  
+ * Droplet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * Droplet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License
+ * along with Droplet.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.droplet.framework;
+
+/**
+ * JMX view of DropletMetrics.  Registered as com.rapplogic.droplet:type=Droplet
+ * 
+ * @author andrew
+ *
+ */
+public interface DropletMetricsMBean {
+	public long getUptimeMillis();
+	public long getPullMessages();
+	public long getPushAlerts();
+	public long getPullAppErrors();
+	public long getDeliveryFailures();
+	public long getPullTimeouts();
+	public long getNextPrevPageHits();
+	public long getCoalescedPulls();
+	/**
+	 * Push service executions interrupted after their deadline
+	 */
+	public long getPushTimeouts();
+	/**
+	 * Push service executions that passed their deadline and have not returned
+	 */
+	public long getStuckPushServices();
+	/**
+	 * Cached pull service requests answered with fresh content, for all cached services
+	 */
+	public long getCacheHits();
+	/**
+	 * Cached pull service requests answered with stale content while it is refreshed
+	 */
+	public long getCacheStaleHits();
+	/**
+	 * Cached pull service requests that had to execute the service
+	 */
+	public long getCacheMisses();
+	/**
+	 * One line per pipeline stage with count, mean, p50, p99 and max latency
+	 */
+	public String[] getLatencySummary();
+	/**
+	 * @param stage name of a DropletMetrics.Stage (e.g. TX_TO_ACK)
+	 * @param percentile e.g. 99.0
+	 * @return latency in microseconds
+	 */
+	public long getLatencyMicros(String stage, double percentile);
+}
@@ -0,0 +1,35 @@
+/**
+ * Copyright (c) 2009 Andrew Rapp. All rights reserved.
+ *  
+ * This file is part of Droplet.
+ *  
+ * Droplet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * Droplet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License
+ * along with Droplet.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.droplet.framework;
+
+/**
+ * How Droplet runs service calls.
+ * <p/>
+ * PLATFORM runs pull services on a fixed pool of platform threads and push services on a scheduled pool.
+ * VIRTUAL runs each pull service call, push service execution and RunnablePushService on its own virtual thread, 
+ * so services that block on I/O (e.g. IMAP IDLE) do not tie up platform threads and no pool sizing is needed.
+ * VIRTUAL requires a JVM with virtual threads; on older JVMs it falls back to a cached pool of platform threads.
+ * 
+ * @author andrew
+ *
+ */
+public enum ExecutionMode {
+	PLATFORM, VIRTUAL
+}
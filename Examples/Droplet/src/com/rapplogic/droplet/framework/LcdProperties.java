@@ -21,8 +21,8 @@ package com.rapplogic.droplet.framework;
 
 /**
  * Specifies the dimensions of the LCD: number of lines and line size.  
- * Default is 4x20.  This is the largest LCD that is easily supported since
- * XBee packet size is limited to about 84 bytes
+ * Default is 4x20.  This is the largest LCD whose page fits in one XBee packet (about 84 bytes).
+ * Larger pages are sent in several packets (see Droplet.setMaxPayloadSize)
  * 
  * @author andrew
  */
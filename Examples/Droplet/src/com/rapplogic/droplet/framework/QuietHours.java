@@ -0,0 +1,102 @@
+/**
+ * Copyright (c) 2009 Andrew Rapp. All rights reserved.
+ *  
+ * This file is part of Droplet.
+ *  
+ * Droplet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * Droplet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License
+ * along with Droplet.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.droplet.framework;
+
+import java.util.Calendar;
+
+/**
+ * A daily window (e.g. 22:00 to 06:00) in local time during which alerts are held instead of being sent.
+ * The window may cross midnight.
+ * 
+ * @author andrew
+ *
+ */
+public class QuietHours {
+
+	private final int startMinute;
+	private final int endMinute;
+	
+	/**
+	 * @param startHour 0-23
+	 * @param startMinute 0-59
+	 * @param endHour 0-23
+	 * @param endMinute 0-59
+	 */
+	public QuietHours(int startHour, int startMinute, int endHour, int endMinute) {
+		if (startHour < 0 || startHour > 23 || endHour < 0 || endHour > 23) {
+			throw new IllegalArgumentException("hour must be between 0 and 23");
+		}
+		
+		if (startMinute < 0 || startMinute > 59 || endMinute < 0 || endMinute > 59) {
+			throw new IllegalArgumentException("minute must be between 0 and 59");
+		}
+		
+		this.startMinute = startHour * 60 + startMinute;
+		this.endMinute = endHour * 60 + endMinute;
+		
+		if (this.startMinute == this.endMinute) {
+			throw new IllegalArgumentException("start and end must be different");
+		}
+	}
+	
+	private int getMinuteOfDay(Calendar cal) {
+		return cal.get(Calendar.HOUR_OF_DAY) * 60 + cal.get(Calendar.MINUTE);
+	}
+	
+	/**
+	 * @return true if the time is within the window
+	 */
+	public boolean isQuiet(long timeMillis) {
+		Calendar cal = Calendar.getInstance();
+		cal.setTimeInMillis(timeMillis);
+		
+		int minute = this.getMinuteOfDay(cal);
+		
+		if (startMinute < endMinute) {
+			return minute >= startMinute && minute < endMinute;
+		}
+		
+		// crosses midnight
+		return minute >= startMinute || minute < endMinute;
+	}
+	
+	/**
+	 * Returns the next time, after timeMillis, that the window ends
+	 */
+	public long getEndTime(long timeMillis) {
+		Calendar cal = Calendar.getInstance();
+		cal.setTimeInMillis(timeMillis);
+		
+		cal.set(Calendar.HOUR_OF_DAY, endMinute / 60);
+		cal.set(Calendar.MINUTE, endMinute % 60);
+		cal.set(Calendar.SECOND, 0);
+		cal.set(Calendar.MILLISECOND, 0);
+		
+		if (cal.getTimeInMillis() <= timeMillis) {
+			cal.add(Calendar.DAY_OF_MONTH, 1);
+		}
+		
+		return cal.getTimeInMillis();
+	}
+	
+	public String toString() {
+		return String.format("%02d:%02d-%02d:%02d", startMinute / 60, startMinute % 60, endMinute / 60, endMinute % 60);
+	}
+}
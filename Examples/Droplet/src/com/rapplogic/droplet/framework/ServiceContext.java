@@ -20,7 +20,6 @@
 package com.rapplogic.droplet.framework;
 
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.DelayQueue;
 
 import com.rapplogic.droplet.framework.service.Alert;
 import com.rapplogic.droplet.framework.service.DelayedAlert;
@@ -38,16 +37,46 @@ import com.rapplogic.droplet.framework.text.ContentFormatter;
 public interface ServiceContext {
 
 	public void registerPullService(Integer serviceId, PullService service);
+	/**
+	 * Registers the service wrapped in a CachingPullService, which returns cached content for ttlMillis 
+	 * and then refreshes stale content in the background
+	 */
+	public void registerPullService(Integer serviceId, PullService service, long ttlMillis);
+	/**
+	 * Swaps the pull service for the id at runtime.  Returns the old service or null
+	 */
+	public PullService replacePullService(Integer serviceId, PullService service);
 	public void unRegisterPullService(Integer serviceId);
 	public Runnable registerPushService(final PushService service);
+	/**
+	 * Registers the service with its own execution deadline.  Executions running longer than timeoutMillis are interrupted
+	 */
+	public Runnable registerPushService(final PushService service, long timeoutMillis);
+	/**
+	 * Starts the service and stops the one registered as old.  Returns the runnable of the new service
+	 */
+	public Runnable replacePushService(Runnable old, PushService service);
 	public boolean unRegisterPushService(Runnable runnable);
 	public void sendAlert(Alert alert);
 	public void sendDelayedAlert(DelayedAlert alert);
+	/**
+	 * Schedules the alert under a key, replacing any alert that is scheduled with the same key 
+	 * (i.e. reschedules it).  Keys are shared by all services, so include something unique to the service.
+	 */
+	public void scheduleDelayedAlert(Object key, DelayedAlert alert);
+	/**
+	 * Cancels the alert scheduled with the key.  Returns false if there is none (e.g. it already fired)
+	 */
+	public boolean cancelDelayedAlert(Object key);
 	public long getPullServiceTimeoutMillis();
 	public void setPullServiceTimeoutMillis(long serviceTimeoutMillis);
 	public int getXBeeSendTimeout();
 	public void setXBeeSendTimeout(int sendTimeout);
 	public ContentFormatter getFormatter();
+	/**
+	 * Counters and pipeline latencies, e.g. for a stats pull service
+	 */
+	public DropletMetrics getMetrics();
 	public BlockingQueue<Alert> getAlertQueue();
-	public DelayQueue<DelayedAlert> getDelayedAlertQueue();
+	public BlockingQueue<DelayedAlert> getDelayedAlertQueue();
 }
@@ -0,0 +1,354 @@
+/**
+ * Copyright (c) 2009 Andrew Rapp. All rights reserved.
+ *  
+ * This file is part of Droplet.
+ *  
+ * Droplet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * Droplet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License
+ * along with Droplet.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.droplet.framework.internal;
+
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.rapplogic.droplet.framework.service.MissedExecutionPolicy;
+import com.rapplogic.droplet.framework.service.RecurringService;
+import com.rapplogic.droplet.framework.service.RecurringService.RecurringType;
+
+/**
+ * Runs a recurring push service, scheduling each execution after the previous one finishes.
+ * <p/>
+ * The interval starts at the service's getDelay() and grows by idleGrowth after each execution that 
+ * produced no alert, up to maxIdleFactor times the delay.  An execution that produces an alert resets it.
+ * Errors back off exponentially, up to maxErrorFactor times the delay, until the service succeeds again.
+ * Each interval is adjusted by +/- jitter so services with the same delay don't all poll at once.
+ * <p/>
+ * FIXED_DELAY measures the interval from the end of the previous execution.  FIXED_RATE measures it from
+ * when the previous execution was due, so it does not drift; if it falls behind it runs right away, like 
+ * scheduleAtFixedRate.  Jitter does not accumulate for FIXED_RATE.
+ * <p/>
+ * An execution that starts more than an interval late has missed executions, e.g. because the host was suspended
+ * or the service ran longer than its interval.  Lateness is measured with the monotonic clock and, since that clock 
+ * does not advance while the host is suspended, also with the wall clock.  The MissedExecutionPolicy decides whether 
+ * the missed executions are coalesced into one, skipped or replayed (bounded), after which the schedule continues 
+ * from now, so a host that wakes up does not send a burst of requests upstream.
+ * 
+ * @author andrew
+ *
+ */
+public class AdaptiveSchedule implements Runnable {
+
+	private final static Logger log = Logger.getLogger(AdaptiveSchedule.class);
+	
+	/**
+	 * Result of one execution
+	 */
+	public enum Outcome {
+		ALERT, NO_ALERT, ERROR
+	}
+	
+	public interface Task {
+		public Outcome execute();
+	}
+	
+	private final static Random random = new Random();
+	
+	private final RecurringService service;
+	private final Task task;
+	private final ScheduledExecutorService scheduler;
+	private final Executor executor;
+	
+	private double idleGrowth = 1.5;
+	private double maxIdleFactor = 4;
+	private double maxErrorFactor = 16;
+	private double jitter = 0.1;
+	
+	private MissedExecutionPolicy missedExecutionPolicy = MissedExecutionPolicy.COALESCE;
+	private int maxReplayedExecutions = 3;
+	
+	private double idleFactor = 1;
+	private int consecutiveErrors;
+	
+	// nanoTime the current execution was due, without jitter
+	private long due;
+	private long interval;
+	
+	// when the scheduled execution should start, by the monotonic and the wall clock
+	private long expectedNanos;
+	private long expectedWallMillis;
+	
+	// missed executions still to replay
+	private int replays;
+	private long missedExecutions;
+	
+	private volatile boolean cancelled;
+	private ScheduledFuture<?> future;
+	
+	/**
+	 * @param scheduler triggers executions
+	 * @param executor runs the executions, or null to run them on the scheduler thread
+	 */
+	public AdaptiveSchedule(RecurringService service, Task task, ScheduledExecutorService scheduler, Executor executor) {
+		this.service = service;
+		this.task = task;
+		this.scheduler = scheduler;
+		this.executor = executor;
+	}
+	
+	public synchronized void start() {
+		interval = service.getDelay();
+		due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(service.getInitialDelay());
+		this.schedule(service.getInitialDelay(), due);
+	}
+	
+	/**
+	 * Stops future executions.  An execution that is running is not interrupted
+	 */
+	public synchronized void cancel() {
+		cancelled = true;
+		
+		if (future != null) {
+			future.cancel(false);
+		}
+	}
+	
+	/**
+	 * @param expected nanoTime the execution should start.  May be earlier than now + delay if we're behind
+	 */
+	private synchronized void schedule(long delayMillis, long expected) {
+		if (cancelled) {
+			return;
+		}
+		
+		expectedNanos = expected;
+		expectedWallMillis = System.currentTimeMillis() + TimeUnit.NANOSECONDS.toMillis(expected - System.nanoTime());
+		
+		try {
+			future = scheduler.schedule(this, delayMillis, TimeUnit.MILLISECONDS);	
+		} catch (RejectedExecutionException e) {
+			// shutting down
+			log.debug("Scheduler is shut down.. not rescheduling " + service);
+		}
+	}
+	
+	/**
+	 * Called by the scheduler when the execution is due
+	 */
+	public void run() {
+		if (cancelled || !this.checkMissed()) {
+			return;
+		}
+		
+		if (executor == null) {
+			this.execute();
+			return;
+		}
+		
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					execute();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			log.debug("Executor is shut down.. not running " + service);
+		}
+	}
+	
+	/**
+	 * Applies the missed execution policy if we are more than an interval late
+	 * 
+	 * @return false if this execution is skipped
+	 */
+	private synchronized boolean checkMissed() {
+		long now = System.nanoTime();
+		long lateMillis = Math.max(TimeUnit.NANOSECONDS.toMillis(now - expectedNanos), System.currentTimeMillis() - expectedWallMillis);
+		long missed = interval > 0 ? lateMillis / interval : 0;
+		
+		if (missed <= 0) {
+			return true;
+		}
+		
+		missedExecutions += missed;
+		
+		// continue the schedule from now
+		due = now;
+		
+		switch (missedExecutionPolicy) {
+			case SKIP:
+				log.warn("Service [" + service + "] missed " + missed + " executions (" + lateMillis + "ms late).. skipping");
+				long next = this.jitter(interval);
+				due += TimeUnit.MILLISECONDS.toNanos(interval);
+				this.schedule(next, now + TimeUnit.MILLISECONDS.toNanos(next));
+				return false;
+			case REPLAY:
+				replays = (int) Math.min(missed, maxReplayedExecutions);
+				log.warn("Service [" + service + "] missed " + missed + " executions (" + lateMillis + "ms late).. replaying " + replays);
+				return true;
+			default:
+				log.warn("Service [" + service + "] missed " + missed + " executions (" + lateMillis + "ms late).. running once");
+				return true;
+		}
+	}
+	
+	private long jitter(long interval) {
+		return interval + (long) (interval * jitter * (2 * random.nextDouble() - 1));
+	}
+	
+	private void execute() {
+		Outcome outcome;
+		
+		try {
+			outcome = task.execute();
+		} catch (RuntimeException e) {
+			log.error("Error in push service " + service, e);
+			outcome = Outcome.ERROR;
+		}
+		
+		this.scheduleNext(outcome);
+	}
+	
+	private synchronized void scheduleNext(Outcome outcome) {
+		long delay = service.getDelay();
+		
+		if (outcome == Outcome.ALERT) {
+			idleFactor = 1;
+			consecutiveErrors = 0;
+		} else if (outcome == Outcome.NO_ALERT) {
+			idleFactor = Math.min(idleFactor * idleGrowth, maxIdleFactor);
+			consecutiveErrors = 0;
+		} else {
+			consecutiveErrors++;
+		}
+		
+		if (replays > 0) {
+			replays--;
+			
+			if (replays == 0) {
+				// done catching up
+				due = System.nanoTime();
+			}
+			
+			this.schedule(0, System.nanoTime());
+			return;
+		}
+		
+		double factor = idleFactor;
+		
+		if (consecutiveErrors > 0) {
+			// 2, 4, 8.. times the delay
+			factor = Math.max(factor, Math.min(Math.pow(2, Math.min(consecutiveErrors, 30)), maxErrorFactor));
+		}
+		
+		interval = (long) (delay * factor);
+		long jittered = this.jitter(interval);
+		
+		long now = System.nanoTime();
+		long next;
+		long expected;
+		
+		if (service.getType() == RecurringType.FIXED_RATE) {
+			due += TimeUnit.MILLISECONDS.toNanos(interval);
+			expected = due + TimeUnit.MILLISECONDS.toNanos(jittered - interval);
+			next = Math.max(0, TimeUnit.NANOSECONDS.toMillis(expected - now));
+		} else {
+			due = now + TimeUnit.MILLISECONDS.toNanos(interval);
+			next = jittered;
+			expected = now + TimeUnit.MILLISECONDS.toNanos(next);
+		}
+		
+		if (log.isDebugEnabled()) {
+			log.debug(outcome + " from " + service + ".. next execution in " + next + "ms (factor " + factor + ")");
+		}
+		
+		this.schedule(next, expected);
+	}
+	
+	/**
+	 * Current interval in milliseconds, without jitter
+	 */
+	public synchronized long getInterval() {
+		return interval;
+	}
+	
+	public RecurringService getService() {
+		return service;
+	}
+	
+	/**
+	 * Executions missed since the schedule started, whatever the policy did about them
+	 */
+	public synchronized long getMissedExecutions() {
+		return missedExecutions;
+	}
+	
+	public synchronized void setMissedExecutionPolicy(MissedExecutionPolicy missedExecutionPolicy, int maxReplayedExecutions) {
+		if (maxReplayedExecutions <= 0) {
+			throw new IllegalArgumentException("must be > 0");
+		}
+		
+		this.missedExecutionPolicy = missedExecutionPolicy;
+		this.maxReplayedExecutions = maxReplayedExecutions;
+	}
+	
+	/**
+	 * Interval grows by this factor after an execution that produced no alert.  Default is 1.5
+	 */
+	public synchronized void setIdleGrowth(double idleGrowth) {
+		if (idleGrowth < 1) {
+			throw new IllegalArgumentException("must be >= 1");
+		}
+		
+		this.idleGrowth = idleGrowth;
+	}
+	
+	/**
+	 * Interval is at most this many times the service delay when there are no alerts.  Default is 4.  1 disables 
+	 */
+	public synchronized void setMaxIdleFactor(double maxIdleFactor) {
+		if (maxIdleFactor < 1) {
+			throw new IllegalArgumentException("must be >= 1");
+		}
+		
+		this.maxIdleFactor = maxIdleFactor;
+	}
+	
+	/**
+	 * Interval is at most this many times the service delay after errors.  Default is 16.  1 disables
+	 */
+	public synchronized void setMaxErrorFactor(double maxErrorFactor) {
+		if (maxErrorFactor < 1) {
+			throw new IllegalArgumentException("must be >= 1");
+		}
+		
+		this.maxErrorFactor = maxErrorFactor;
+	}
+	
+	/**
+	 * Fraction of the interval each execution may be moved earlier or later.  Default is 0.1
+	 */
+	public synchronized void setJitter(double jitter) {
+		if (jitter < 0 || jitter >= 1) {
+			throw new IllegalArgumentException("must be >= 0 and < 1");
+		}
+		
+		this.jitter = jitter;
+	}
+}
@@ -0,0 +1,182 @@
+/**
+ * Copyright (c) 2009 Andrew Rapp. All rights reserved.
+ *  
+ * This file is part of Droplet.
+ *  
+ * Droplet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * Droplet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License
+ * along with Droplet.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.droplet.framework.internal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.rapplogic.droplet.framework.service.Alert;
+
+/**
+ * Combines alerts for the same remote that arrive within a short window into one multi-page alert, so a burst
+ * (e.g. 20 new emails) is sent as one transmission and stored as one history entry.
+ * <p/>
+ * The window starts with the first alert for a remote, so no alert waits longer than the window.  
+ * Emergency alerts and alerts with coalesce=false are not held.  A window is sent early if it reaches maxAlerts.
+ * 
+ * @author andrew
+ *
+ */
+public class AlertCoalescer {
+
+	private final static Logger log = Logger.getLogger(AlertCoalescer.class);
+	
+	/**
+	 * Sends the combined alert
+	 */
+	public interface Release {
+		public void release(Alert alert);
+	}
+	
+	private class Window implements Runnable {
+		private final String key;
+		private final List<Alert> alerts = new ArrayList<Alert>();
+		private ScheduledFuture<?> flush;
+		
+		Window(String key) {
+			this.key = key;
+		}
+		
+		public void run() {
+			flush(this);
+		}
+	}
+	
+	private final ScheduledExecutorService timer;
+	private final Release release;
+	
+	private long windowMillis;
+	private int maxAlerts = 10;
+	
+	// open windows by remote address
+	private final HashMap<String, Window> windows = new HashMap<String, Window>();
+	
+	/**
+	 * @param windowMillis 0 disables
+	 */
+	public AlertCoalescer(ScheduledExecutorService timer, long windowMillis, Release release) {
+		this.timer = timer;
+		this.release = release;
+		this.setWindowMillis(windowMillis);
+	}
+	
+	/**
+	 * Holds the alert until its remote's window closes.  The alert must be for a single remote
+	 * 
+	 * @return true if the alert was held, false if it should be sent now
+	 */
+	public boolean hold(Alert alert) {
+		Window full = null;
+		
+		synchronized (this) {
+			if (windowMillis == 0 || !alert.isCoalesce() || alert.isEmergency()) {
+				return false;
+			}
+			
+			String key = alert.getRemoteXBeeAddress().toString();
+			Window window = windows.get(key);
+			
+			if (window == null) {
+				window = new Window(key);
+				windows.put(key, window);
+				window.flush = timer.schedule(window, windowMillis, TimeUnit.MILLISECONDS);
+			}
+			
+			window.alerts.add(alert);
+			
+			if (window.alerts.size() >= maxAlerts) {
+				full = window;
+			}
+		}
+		
+		if (full != null) {
+			full.flush.cancel(false);
+			this.flush(full);
+		}
+		
+		return true;
+	}
+	
+	private void flush(Window window) {
+		synchronized (this) {
+			// may have been sent already because it was full
+			if (windows.get(window.key) != window) {
+				return;
+			}
+			
+			windows.remove(window.key);
+		}
+		
+		if (window.alerts.size() > 1) {
+			log.info("Combining " + window.alerts.size() + " alerts for " + window.key);
+		}
+		
+		release.release(MergedAlert.merge(window.alerts));
+	}
+	
+	/**
+	 * Sends all held alerts now
+	 */
+	public void flush() {
+		List<Window> open;
+		
+		synchronized (this) {
+			open = new ArrayList<Window>(windows.values());
+		}
+		
+		for (Window window : open) {
+			window.flush.cancel(false);
+			this.flush(window);
+		}
+	}
+	
+	public synchronized long getWindowMillis() {
+		return windowMillis;
+	}
+
+	/**
+	 * 0 disables.  Windows that are open keep their time
+	 */
+	public synchronized void setWindowMillis(long windowMillis) {
+		if (windowMillis < 0) {
+			throw new IllegalArgumentException("must be >= 0");
+		}
+		
+		this.windowMillis = windowMillis;
+	}
+
+	public synchronized int getMaxAlerts() {
+		return maxAlerts;
+	}
+
+	public synchronized void setMaxAlerts(int maxAlerts) {
+		if (maxAlerts <= 0) {
+			throw new IllegalArgumentException("must be > 0");
+		}
+		
+		this.maxAlerts = maxAlerts;
+	}
+}
@@ -0,0 +1,432 @@
+/**
+ * Copyright (c) 2009 Andrew Rapp. All rights reserved.
+ *  
+ * This file is part of Droplet.
+ *  
+ * Droplet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * Droplet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License
+ * along with Droplet.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.droplet.framework.internal;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.rapplogic.droplet.framework.DeliveryException;
+import com.rapplogic.droplet.framework.Message;
+import com.rapplogic.xbee.api.XBee;
+import com.rapplogic.xbee.api.zigbee.ZNetTxRequest;
+import com.rapplogic.xbee.api.zigbee.ZNetTxStatusResponse;
+
+/**
+ * Sends ZNetTxRequests without waiting for the ACK, so that many requests may be
+ * in flight at once.  Each request is assigned a frame id that is not currently
+ * in use and the TX Status Response is matched back to the request by this frame id.
+ * <p/>
+ * The TX Status Responses are read by the Droplet main loop, which must
+ * call handleTxStatus for each one.  Requests that do not receive a status within
+ * the send timeout complete with a DeliveryException.
+ * <p/>
+ * The number of outstanding requests is limited by maxInFlight.  A slot is obtained
+ * with reserve, which either blocks or returns null when the window is full.
+ * <p/>
+ * Round trip times are fed to a RoundTripEstimator, which gives the send timeout of each remote.  
+ * When a request times out its frame id is quarantined for quarantineMillis, so that a late TX Status 
+ * Response is not mistaken for the status of a newer request that reused the id.
+ * 
+ * @author andrew
+ *
+ */
+public class AsyncTransmitter {
+
+	private final static Logger log = Logger.getLogger(AsyncTransmitter.class);
+
+	// frame id 0 means no tx status, so we use 1-255
+	private final static int MAX_FRAME_ID = 255;
+	
+	private final XBee xbee;
+	private final ScheduledExecutorService timer;
+	
+	// serializes writes to the radio.  never lock the XBee object: XBee.getResponse() is synchronized and holds 
+	// the monitor while the main loop waits for a packet
+	private final Object writeLock = new Object();
+	
+	private final HashMap<Integer, InFlight> inFlight = new HashMap<Integer, InFlight>();
+	// requests that timed out, by frame id.  the ids are not reused until the status arrives or the quarantine expires
+	private final HashMap<Integer, InFlight> quarantined = new HashMap<Integer, InFlight>();
+	
+	private final RoundTripEstimator estimator = new RoundTripEstimator();
+	
+	private int maxInFlight = 8;
+	private long quarantineMillis = 30000;
+	private int lastFrameId;
+	
+	private volatile Runnable windowListener;
+	private volatile LateDeliveryListener lateDeliveryListener;
+	
+	/**
+	 * Notified when a request that already timed out turns out to have been delivered
+	 */
+	public interface LateDeliveryListener {
+		public void delivered(DeliveryFuture future);
+	}
+	
+	public AsyncTransmitter(XBee xbee, ScheduledExecutorService timer) {
+		this.xbee = xbee;
+		this.timer = timer;
+	}
+	
+	private static class InFlight {
+		DeliveryFuture future;
+		volatile ScheduledFuture<?> timeout;
+		// false if the round trip can't be sampled (sent in fragments)
+		volatile boolean sample;
+	}
+	
+	/**
+	 * Reserves a slot in the window and a frame id for the message.  Call send with the returned 
+	 * future to transmit the request.
+	 * 
+	 * @param message the message this request delivers
+	 * @param block if true, waits for a slot when maxInFlight requests are outstanding; otherwise returns null
+	 * @return
+	 * @throws InterruptedException
+	 */
+	public DeliveryFuture reserve(Message message, boolean block) throws InterruptedException {
+		
+		DeliveryFuture future = new DeliveryFuture(message);
+		InFlight entry = new InFlight();
+		entry.future = future;
+		
+		synchronized (this) {
+			while (inFlight.size() >= Math.min(maxInFlight, MAX_FRAME_ID - quarantined.size())) {
+				if (!block) {
+					return null;
+				}
+				
+				log.debug("tx window is full (" + inFlight.size() + " in flight).. waiting");
+				this.wait();
+			}
+			
+			future.setFrameId(this.allocateFrameId());
+			inFlight.put(future.getFrameId(), entry);
+		}
+		
+		return future;
+	}
+	
+	/**
+	 * Sends the request and returns immediately.  The future completes when the TX Status Response
+	 * for the frame id is received, or after timeoutMillis
+	 * 
+	 * @param future a future obtained from reserve
+	 * @param request
+	 * @param timeoutMillis time to wait for the TX Status Response
+	 */
+	public void send(final DeliveryFuture future, ZNetTxRequest request, final long timeoutMillis) {
+		this.send(future, Collections.singletonList(request), timeoutMillis);
+	}
+	
+	/**
+	 * Sends the fragments of one message back to back, without waiting for ACKs in between.  Only the last
+	 * fragment has the reserved frame id, so the future completes with its TX Status Response; the others are
+	 * sent with no frame id.  The receiver detects a missing fragment from the fragment numbers.
+	 * All fragments and the last request are written under the write lock, so fragments of different messages 
+	 * never interleave.
+	 */
+	public void send(final DeliveryFuture future, List<ZNetTxRequest> requests, final long timeoutMillis) {
+		
+		InFlight entry;
+		
+		synchronized (this) {
+			entry = inFlight.get(future.getFrameId());
+		}
+		
+		if (entry == null || entry.future != future) {
+			throw new IllegalStateException("No reservation for frame id " + future.getFrameId());
+		}
+		
+		ZNetTxRequest request = requests.get(requests.size() - 1);
+		request.setFrameId(future.getFrameId());
+		
+		// the status of a fragmented request also includes the time to send the other fragments
+		entry.sample = requests.size() == 1;
+		
+		entry.timeout = timer.schedule(new Runnable() {
+			public void run() {
+				timeout(future, timeoutMillis);
+			}
+		}, timeoutMillis, TimeUnit.MILLISECONDS);
+		
+		log.info("Sending packet to Arduino: " + request);
+		
+		try {
+			// fragments of different messages must not interleave.  the whole message is written under the write lock
+			synchronized (writeLock) {
+				future.setSendTime(System.nanoTime());
+				
+				for (int i = 0; i < requests.size() - 1; i++) {
+					requests.get(i).setFrameId(ZNetTxRequest.NO_RESPONSE_FRAME_ID);
+					xbee.sendAsynchronous(requests.get(i));
+				}
+				
+				xbee.sendAsynchronous(request);
+			}
+		} catch (Exception e) {
+			this.fail(future, new DeliveryException("Unexpected error while transmitting message to radio", e));
+		}
+	}
+	
+	/**
+	 * Releases the reservation and completes the future with the exception, if it is still in flight
+	 */
+	public void fail(DeliveryFuture future, DeliveryException e) {
+		InFlight entry;
+		
+		synchronized (this) {
+			entry = inFlight.get(future.getFrameId());
+		}
+		
+		if (entry == null || !this.release(future.getFrameId(), future)) {
+			return;
+		}
+		
+		if (entry.timeout != null) {
+			entry.timeout.cancel(false);
+		}
+		
+		future.setException(e);
+		this.fireWindowAvailable();
+	}
+	
+	/**
+	 * Fails the request with a timeout and quarantines its frame id
+	 */
+	private void timeout(DeliveryFuture future, long timeoutMillis) {
+		final int frameId = future.getFrameId();
+		final InFlight entry;
+		
+		synchronized (this) {
+			entry = inFlight.get(frameId);
+			
+			if (entry == null || entry.future != future) {
+				return;
+			}
+			
+			inFlight.remove(frameId);
+			quarantined.put(frameId, entry);
+			this.notifyAll();
+		}
+		
+		entry.timeout = timer.schedule(new Runnable() {
+			public void run() {
+				releaseQuarantined(frameId, entry);
+			}
+		}, quarantineMillis, TimeUnit.MILLISECONDS);
+		
+		estimator.timedOut(this.getRemote(future));
+		
+		future.setException(new DeliveryException("Unable to send message to LCD.  Timeout after " + timeoutMillis + " milliseconds"));
+		this.fireWindowAvailable();
+	}
+	
+	/**
+	 * Completes the pending delivery for this TX Status Response.
+	 * 
+	 * @return false if there is no request in flight or quarantined with this frame id
+	 */
+	public boolean handleTxStatus(ZNetTxStatusResponse response) {
+		InFlight entry;
+		InFlight late;
+		
+		synchronized (this) {
+			entry = inFlight.get(response.getFrameId());
+			late = entry == null ? quarantined.remove(response.getFrameId()) : null;
+		}
+		
+		if (late != null) {
+			this.handleLateTxStatus(response, late);
+			return true;
+		}
+		
+		if (entry == null || !this.release(response.getFrameId(), entry.future)) {
+			return false;
+		}
+		
+		if (entry.timeout != null) {
+			entry.timeout.cancel(false);
+		}
+		
+		log.info("Received TX Status Response " + response);
+		
+		this.sample(entry, response);
+		entry.future.setResponse(response);
+		this.fireWindowAvailable();
+		
+		return true;
+	}
+	
+	/**
+	 * Status of a request that already timed out.  Still a valid sample, and a sign the timeout is too short
+	 */
+	private void handleLateTxStatus(ZNetTxStatusResponse response, InFlight entry) {
+		synchronized (this) {
+			// frame id is free
+			this.notifyAll();
+		}
+		
+		if (entry.timeout != null) {
+			entry.timeout.cancel(false);
+		}
+		
+		log.info("Received TX Status Response after timeout " + response);
+		
+		this.sample(entry, response);
+		
+		LateDeliveryListener listener = lateDeliveryListener;
+		
+		if (listener != null && response.isSuccess()) {
+			try {
+				listener.delivered(entry.future);
+			} catch (Exception e) {
+				log.error("Late delivery listener threw exception", e);
+			}
+		}
+	}
+	
+	private void sample(InFlight entry, ZNetTxStatusResponse response) {
+		// failures take as long as the radio retries, not the round trip
+		if (entry.sample && response.isSuccess()) {
+			estimator.sample(this.getRemote(entry.future), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - entry.future.getSendTime()));
+		}
+	}
+	
+	private String getRemote(DeliveryFuture future) {
+		return future.getMessage().getRemoteXBeeAddress().toString();
+	}
+	
+	/**
+	 * Releases a quarantined frame id if the status never arrived
+	 */
+	private synchronized void releaseQuarantined(int frameId, InFlight entry) {
+		if (quarantined.get(frameId) == entry) {
+			log.debug("no TX Status Response for frame id " + frameId + ".. releasing");
+			quarantined.remove(frameId);
+			this.notifyAll();
+		}
+	}
+	
+	/**
+	 * Removes the frame id from the in-flight map if it still belongs to this future.
+	 * Only the caller that receives true may complete the future.
+	 */
+	private synchronized boolean release(int frameId, DeliveryFuture future) {
+		InFlight entry = inFlight.get(frameId);
+		
+		if (entry == null || entry.future != future) {
+			return false;
+		}
+		
+		inFlight.remove(frameId);
+		this.notifyAll();
+		
+		return true;
+	}
+	
+	private void fireWindowAvailable() {
+		Runnable listener = windowListener;
+		
+		if (listener != null) {
+			try {
+				listener.run();
+			} catch (Exception e) {
+				log.error("Window listener threw exception", e);
+			}
+		}
+	}
+	
+	/**
+	 * Called, without locks held, on the thread that reads TX Status Responses.  Must not block
+	 */
+	public void setLateDeliveryListener(LateDeliveryListener lateDeliveryListener) {
+		this.lateDeliveryListener = lateDeliveryListener;
+	}
+	
+	/**
+	 * Called, without locks held, each time a slot in the window is freed
+	 */
+	public void setWindowListener(Runnable windowListener) {
+		this.windowListener = windowListener;
+	}
+	
+	private int allocateFrameId() {
+		// called with lock held and at least one free id
+		do {
+			lastFrameId = lastFrameId >= MAX_FRAME_ID ? 1 : lastFrameId + 1;
+		} while (inFlight.containsKey(lastFrameId) || quarantined.containsKey(lastFrameId));
+		
+		return lastFrameId;
+	}
+	
+	public synchronized int getInFlightCount() {
+		return inFlight.size();
+	}
+	
+	/**
+	 * Frame ids held back because their request timed out
+	 */
+	public synchronized int getQuarantinedCount() {
+		return quarantined.size();
+	}
+	
+	public RoundTripEstimator getRoundTripEstimator() {
+		return estimator;
+	}
+	
+	public synchronized long getQuarantineMillis() {
+		return quarantineMillis;
+	}
+	
+	/**
+	 * How long the frame id of a request that timed out is held back for its late TX Status Response.  Default is 30000
+	 */
+	public synchronized void setQuarantineMillis(long quarantineMillis) {
+		if (quarantineMillis <= 0) {
+			throw new IllegalArgumentException("must be > 0");
+		}
+		
+		this.quarantineMillis = quarantineMillis;
+	}
+	
+	public synchronized int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	/**
+	 * Maximum number of requests awaiting a TX Status Response.  Default is 8
+	 */
+	public synchronized void setMaxInFlight(int maxInFlight) {
+		if (maxInFlight <= 0) {
+			throw new IllegalArgumentException("must be > 0");
+		}
+		
+		this.maxInFlight = maxInFlight;
+		this.notifyAll();
+	}
+}
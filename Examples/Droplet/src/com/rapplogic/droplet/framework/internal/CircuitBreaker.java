@@ -0,0 +1,261 @@
+/**
+ * Copyright (c) 2009 Andrew Rapp. All rights reserved.
+ *  
+ * This file is part of Droplet.
+ *  
+ * Droplet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * Droplet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License
+ * along with Droplet.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.rapplogic.droplet.framework.internal;
+
+import java.util.HashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.rapplogic.xbee.api.XBeeAddress64;
+
+/**
+ * Stops sending to a remote that appears to be offline, so each message to it fails immediately 
+ * instead of after the send timeout.
+ * <p/>
+ * The circuit of a remote opens after failureThreshold consecutive delivery failures.  While it is open, 
+ * allow returns false except for one probe delivery, allowed initialProbeMillis after opening.  Each failed probe 
+ * doubles the wait, up to maxProbeMillis.  When a probe is due the Probe callback is called, so the caller can 
+ * send something (e.g. the missed alerts); otherwise the next message is the probe.
+ * <p/>
+ * The circuit closes when a delivery succeeds or remoteReachable is called (e.g. any RX packet from the remote).
+ * 
+ * @author andrew
+ *
+ */
+public class CircuitBreaker {
+
+	private final static Logger log = Logger.getLogger(CircuitBreaker.class);
+	
+	/**
+	 * Called, without locks held, when a probe of an open circuit is due.  Must not block
+	 */
+	public interface Probe {
+		public void probe(XBeeAddress64 remote);
+	}
+	
+	private final ScheduledExecutorService timer;
+	private final Probe probe;
+	
+	// keyed by address string since XBeeAddress64 does not implement hashCode.  remotes with no failures have no circuit
+	private final HashMap<String, Circuit> circuits = new HashMap<String, Circuit>();
+	
+	private int failureThreshold = 3;
+	private long initialProbeMillis = 10000;
+	private long maxProbeMillis = 10 * 60 * 1000;
+	
+	private long shortCircuits;
+	
+	private class Circuit implements Runnable {
+		final XBeeAddress64 remote;
+		int failures;
+		boolean open;
+		// a probe delivery is in flight
+		boolean probing;
+		long probeMillis;
+		// System.nanoTime() when the next probe is allowed
+		long nextProbe;
+		ScheduledFuture<?> probeTask;
+		
+		Circuit(XBeeAddress64 remote) {
+			this.remote = remote;
+		}
+		
+		public void run() {
+			log.debug("probe of " + remote + " is due");
+			
+			try {
+				probe.probe(remote);
+			} catch (Exception e) {
+				log.error("Probe callback threw exception", e);
+			}
+		}
+	}
+	
+	public CircuitBreaker(ScheduledExecutorService timer, Probe probe) {
+		this.timer = timer;
+		this.probe = probe;
+	}
+	
+	/**
+	 * Returns true if a delivery to the remote may be sent.  The caller must report the 
+	 * outcome of an allowed delivery with success or failure
+	 */
+	public synchronized boolean allow(XBeeAddress64 remote) {
+		Circuit circuit = circuits.get(remote.toString());
+		
+		if (circuit == null || !circuit.open) {
+			return true;
+		}
+		
+		if (circuit.probing || System.nanoTime() - circuit.nextProbe < 0) {
+			shortCircuits++;
+			return false;
+		}
+		
+		log.info("Probing remote " + remote);
+		circuit.probing = true;
+		return true;
+	}
+	
+	/**
+	 * A delivery to the remote succeeded
+	 */
+	public void success(XBeeAddress64 remote) {
+		this.close(remote);
+	}
+	
+	/**
+	 * The remote sent us a packet
+	 */
+	public void remoteReachable(XBeeAddress64 remote) {
+		this.close(remote);
+	}
+	
+	private synchronized void close(XBeeAddress64 remote) {
+		Circuit circuit = circuits.remove(remote.toString());
+		
+		if (circuit == null) {
+			return;
+		}
+		
+		if (circuit.probeTask != null) {
+			circuit.probeTask.cancel(false);
+		}
+		
+		if (circuit.open) {
+			log.info("Remote " + remote + " is reachable.  Circuit closed");
+		}
+	}
+	
+	/**
+	 * A delivery to the remote failed
+	 */
+	public synchronized void failure(XBeeAddress64 remote) {
+		Circuit circuit = circuits.get(remote.toString());
+		
+		if (circuit == null) {
+			circuit = new Circuit(remote);
+			circuits.put(remote.toString(), circuit);
+		}
+		
+		if (!circuit.open) {
+			circuit.failures++;
+			
+			if (circuit.failures >= failureThreshold) {
+				circuit.open = true;
+				circuit.probeMillis = initialProbeMillis;
+				this.scheduleProbe(circuit);
+				
+				log.warn("Remote " + remote + " failed " + circuit.failures + " deliveries in a row.  Circuit opened, will probe in " + circuit.probeMillis + "ms");
+			}
+		} else if (circuit.probing) {
+			circuit.probing = false;
+			circuit.probeMillis = Math.min(circuit.probeMillis * 2, maxProbeMillis);
+			this.scheduleProbe(circuit);
+			
+			log.info("Probe of remote " + remote + " failed.  Will probe again in " + circuit.probeMillis + "ms");
+		}
+		
+		// else a delivery that was sent before the circuit opened
+	}
+	
+	/**
+	 * Must hold lock
+	 */
+	private void scheduleProbe(Circuit circuit) {
+		circuit.nextProbe = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(circuit.probeMillis);
+		
+		if (circuit.probeTask != null) {
+			circuit.probeTask.cancel(false);
+		}
+		
+		circuit.probeTask = timer.schedule(circuit, circuit.probeMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	public synchronized boolean isOpen(XBeeAddress64 remote) {
+		Circuit circuit = circuits.get(remote.toString());
+		return circuit != null && circuit.open;
+	}
+	
+	/**
+	 * Number of remotes whose circuit is open
+	 */
+	public synchronized int getOpenCount() {
+		int open = 0;
+		
+		for (Circuit circuit : circuits.values()) {
+			if (circuit.open) {
+				open++;
+			}
+		}
+		
+		return open;
+	}
+	
+	/**
+	 * Deliveries refused since the circuit was open
+	 */
+	public synchronized long getShortCircuits() {
+		return shortCircuits;
+	}
+	
+	public synchronized int getFailureThreshold() {
+		return failureThreshold;
+	}
+
+	/**
+	 * Consecutive delivery failures that open the circuit.  Default is 3
+	 */
+	public synchronized void setFailureThreshold(int failureThreshold) {
+		if (failureThreshold <= 0) {
+			throw new IllegalArgumentException("must be > 0");
+		}
+		
+		this.failureThreshold = failureThreshold;
+	}
+
+	public synchronized long getInitialProbeMillis() {
+		return initialProbeMillis;
+	}
+
+	public synchronized void setInitialProbeMillis(long initialProbeMillis) {
+		if (initialProbeMillis <= 0) {
+			throw new IllegalArgumentException("must be > 0");
+		}
+		
+		this.initialProbeMillis = initialProbeMillis;
+	}
+
+	public synchronized long getMaxProbeMillis() {
+		return maxProbeMillis;
+	}
+
+	public synchronized void setMaxProbeMillis(long maxProbeMillis) {
+		if (maxProbeMillis <= 0) {
+			throw new IllegalArgumentException("must be > 0");
+		}
+		
+		this.maxProbeMillis = maxProbeMillis;
+	}
+}
@@ -0,0 +1,659 @@
+/**
+ * Copyright (c) 2009 Andrew Rapp. All rights reserved.
+ *  
+ * This file is part of Droplet.
+ *  
+ * Droplet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * Droplet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License
+ * along with Droplet.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.droplet.framework.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+import com.rapplogic.droplet.framework.LcdProperties;
+import com.rapplogic.droplet.framework.service.Alert;
+import com.rapplogic.droplet.framework.service.DelayedAlert;
+import com.rapplogic.droplet.framework.text.Content;
+import com.rapplogic.droplet.framework.text.IContent;
+import com.rapplogic.droplet.framework.text.Page;
+import com.rapplogic.xbee.api.XBeeAddress64;
+
+/**
+ * Append-only journal of scheduled and removed delayed alerts, so pending alerts survive a restart.
+ * <p/>
+ * The journal file is memory-mapped; a record is [length][crc32][payload] and is appended with a memory write, 
+ * so recording does not block the scheduling thread on I/O.  Writes are forced to disk in the background.
+ * Replay stops at the first empty or corrupt record (e.g. a write that was torn by a crash).
+ * <p/>
+ * When most records are obsolete, the journal is compacted in the background: the live records are written to a 
+ * new file, which replaces the journal.  Scheduling is only blocked while the files are swapped, not while the new 
+ * file is written.
+ * <p/>
+ * Only String schedule keys are journaled.  Alerts are restored as plain DelayedAlerts, so handleError overrides are lost.
+ * 
+ * @author andrew
+ *
+ */
+public class DelayedAlertJournal implements DelayedAlertQueue.Listener {
+
+	private final static Logger log = Logger.getLogger(DelayedAlertJournal.class);
+	
+	private final static byte SCHEDULE = 1;
+	private final static byte REMOVE = 2;
+	
+	private final static int HEADER_SIZE = 8;
+	private final static int INITIAL_SIZE = 1024 * 1024;
+	
+	private final File file;
+	private final LcdProperties lcdProperties;
+	
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private MappedByteBuffer buffer;
+	
+	// payload of live schedule records, by journal id, in schedule order
+	private final LinkedHashMap<String, byte[]> live = new LinkedHashMap<String, byte[]>();
+	private int records;
+	
+	private boolean flushPending;
+	private boolean compactPending;
+	private boolean growPending;
+	
+	// records appended while a background compaction writes the live records, or null
+	private List<byte[]> appendedWhileCompacting;
+	private boolean closed;
+	
+	// compact when there are this many records and at most half are live
+	private int compactThreshold = 1000;
+	
+	private final ExecutorService background = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "Delayed Alert Journal");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
+	/**
+	 * A replayed alert and its schedule key
+	 */
+	public static class Replayed {
+		private final String key;
+		private final DelayedAlert alert;
+		
+		Replayed(String key, DelayedAlert alert) {
+			this.key = key;
+			this.alert = alert;
+		}
+		
+		public String getKey() {
+			return key;
+		}
+		
+		public DelayedAlert getAlert() {
+			return alert;
+		}
+	}
+	
+	/**
+	 * @param file journal file, created if it does not exist
+	 * @param lcdProperties used to rebuild pages
+	 */
+	public DelayedAlertJournal(File file, LcdProperties lcdProperties) {
+		this.file = file;
+		this.lcdProperties = lcdProperties;
+	}
+	
+	/**
+	 * Reads the alerts that were pending when the journal was last written, then compacts the journal
+	 * so it only contains them.  Must be called before the journal is used
+	 * 
+	 * @return pending alerts in the order they were scheduled.  Some may be overdue
+	 * @throws IOException
+	 */
+	public synchronized List<Replayed> open() throws IOException {
+		long start = System.nanoTime();
+		
+		this.map(file, Math.max(INITIAL_SIZE, file.length()));
+		
+		// replay
+		while (buffer.remaining() >= HEADER_SIZE) {
+			int position = buffer.position();
+			int length = buffer.getInt();
+			int crc = buffer.getInt();
+			
+			if (length <= 0 || length > buffer.remaining()) {
+				buffer.position(position);
+				break;
+			}
+			
+			byte[] payload = new byte[length];
+			buffer.get(payload);
+			
+			if (crc != this.crc(payload)) {
+				log.warn("Corrupt record in delayed alert journal at position " + position + ".. ignoring the rest of the journal");
+				buffer.position(position);
+				break;
+			}
+			
+			this.apply(payload);
+		}
+		
+		List<Replayed> replayed = new ArrayList<Replayed>();
+		
+		for (byte[] payload : live.values()) {
+			replayed.add(this.read(payload));
+		}
+		
+		// the alerts are journaled again when they are rescheduled
+		live.clear();
+		this.compact();
+		
+		log.info("Replayed " + replayed.size() + " delayed alerts from " + file + " in " + (System.nanoTime() - start) / 1000000 + "ms");
+		
+		return replayed;
+	}
+	
+	private void map(File file, long size) throws IOException {
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+	}
+	
+	private int crc(byte[] payload) {
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		return (int) crc.getValue();
+	}
+	
+	private void apply(byte[] payload) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		byte type = in.readByte();
+		String journalId = in.readUTF();
+		
+		if (type == SCHEDULE) {
+			live.put(journalId, payload);
+		} else if (type == REMOVE) {
+			live.remove(journalId);
+		}
+		
+		records++;
+	}
+	
+	public synchronized void scheduled(String journalId, Object key, DelayedAlert alert) {
+		try {
+			byte[] payload = this.write(journalId, key instanceof String ? (String) key : null, alert);
+			live.put(journalId, payload);
+			this.append(payload);
+		} catch (IOException e) {
+			log.error("Unable to journal delayed alert " + alert, e);
+		}
+	}
+	
+	public synchronized void removed(String journalId) {
+		if (live.remove(journalId) == null) {
+			return;
+		}
+		
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(REMOVE);
+			out.writeUTF(journalId);
+			out.flush();
+			
+			this.append(bytes.toByteArray());
+		} catch (IOException e) {
+			log.error("Unable to journal removal of delayed alert " + journalId, e);
+		}
+	}
+	
+	/**
+	 * Must hold lock
+	 */
+	private void append(byte[] payload) throws IOException {
+		if (closed) {
+			return;
+		}
+		
+		this.put(payload);
+		records++;
+		
+		if (appendedWhileCompacting != null) {
+			// goes in the compacted journal too
+			appendedWhileCompacting.add(payload);
+		}
+		
+		this.scheduleFlush();
+		
+		if (buffer.remaining() < buffer.capacity() / 4 && !growPending) {
+			// grow before it is full, so appends rarely map the file themselves
+			growPending = true;
+			
+			background.execute(new Runnable() {
+				public void run() {
+					grow();
+				}
+			});
+		}
+		
+		if (records >= compactThreshold && live.size() * 2 <= records && !compactPending) {
+			compactPending = true;
+			
+			background.execute(new Runnable() {
+				public void run() {
+					try {
+						compactInBackground();
+					} catch (IOException e) {
+						log.error("Unable to compact delayed alert journal", e);
+					}
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Writes a record at the end of the buffer, growing the mapping if it's full.  Must hold lock
+	 */
+	private void put(byte[] payload) throws IOException {
+		if (buffer.remaining() < HEADER_SIZE + payload.length + HEADER_SIZE) {
+			// the background growth did not keep up
+			buffer = this.remap(channel, buffer, payload.length);
+		}
+		
+		buffer.putInt(payload.length);
+		buffer.putInt(this.crc(payload));
+		buffer.put(payload);
+	}
+	
+	/**
+	 * Maps a larger region of the file, at the same position
+	 */
+	private MappedByteBuffer remap(FileChannel channel, MappedByteBuffer buffer, int payloadLength) throws IOException {
+		int position = buffer.position();
+		long size = Math.max(buffer.capacity() * 2L, position + HEADER_SIZE * 2L + payloadLength);
+		
+		MappedByteBuffer larger = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		larger.position(position);
+		
+		return larger;
+	}
+	
+	/**
+	 * Maps a larger region without holding the lock, then swaps it in if the journal has not changed files
+	 */
+	private void grow() {
+		FileChannel current;
+		int capacity;
+		
+		synchronized (this) {
+			growPending = false;
+			
+			if (closed) {
+				return;
+			}
+			
+			current = channel;
+			capacity = buffer.capacity();
+		}
+		
+		try {
+			MappedByteBuffer larger = current.map(FileChannel.MapMode.READ_WRITE, 0, capacity * 2L);
+			
+			synchronized (this) {
+				if (!closed && channel == current && buffer.capacity() < larger.capacity()) {
+					larger.position(buffer.position());
+					buffer = larger;
+				}
+			}
+		} catch (IOException e) {
+			log.warn("Unable to grow delayed alert journal", e);
+		}
+	}
+	
+	/**
+	 * Must hold lock
+	 */
+	private void scheduleFlush() {
+		if (flushPending) {
+			return;
+		}
+		
+		flushPending = true;
+		
+		background.execute(new Runnable() {
+			public void run() {
+				MappedByteBuffer toFlush;
+				
+				synchronized (DelayedAlertJournal.this) {
+					flushPending = false;
+					toFlush = closed ? null : buffer;
+				}
+				
+				if (toFlush != null) {
+					toFlush.force();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Copies the live records under the lock, writes and forces them to a new file without it, then swaps 
+	 * the files under the lock and appends the records that were written in the meantime.  Runs on the background thread
+	 */
+	private void compactInBackground() throws IOException {
+		List<byte[]> snapshot;
+		
+		synchronized (this) {
+			compactPending = false;
+			
+			if (closed) {
+				return;
+			}
+			
+			snapshot = new ArrayList<byte[]>(live.values());
+			appendedWhileCompacting = new ArrayList<byte[]>();
+		}
+		
+		Mapping compacted = null;
+		
+		try {
+			compacted = this.writeCompacted(snapshot);
+			
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+				
+				for (byte[] payload : appendedWhileCompacting) {
+					if (compacted.buffer.remaining() < HEADER_SIZE + payload.length + HEADER_SIZE) {
+						compacted.buffer = this.remap(compacted.channel, compacted.buffer, payload.length);
+					}
+					
+					compacted.buffer.putInt(payload.length);
+					compacted.buffer.putInt(this.crc(payload));
+					compacted.buffer.put(payload);
+				}
+				
+				this.swap(compacted, snapshot.size() + appendedWhileCompacting.size());
+				compacted = null;
+				
+				// the records appended since the snapshot are forced with the next flush
+				this.scheduleFlush();
+			}
+		} finally {
+			synchronized (this) {
+				appendedWhileCompacting = null;
+			}
+			
+			if (compacted != null) {
+				compacted.channel.close();
+				compacted.raf.close();
+			}
+		}
+	}
+	
+	/**
+	 * Writes the live records to a new file and replaces the journal with it.  Must hold lock
+	 */
+	private void compact() throws IOException {
+		List<byte[]> snapshot = new ArrayList<byte[]>(live.values());
+		Mapping compacted = this.writeCompacted(snapshot);
+		
+		try {
+			this.swap(compacted, snapshot.size());
+		} catch (IOException e) {
+			compacted.channel.close();
+			compacted.raf.close();
+			throw e;
+		}
+	}
+	
+	private static class Mapping {
+		RandomAccessFile raf;
+		FileChannel channel;
+		MappedByteBuffer buffer;
+	}
+	
+	/**
+	 * Writes the records to the temporary file and forces them to disk.  Does not need the lock
+	 */
+	private Mapping writeCompacted(List<byte[]> payloads) throws IOException {
+		File tmp = this.getTmpFile();
+		
+		if (tmp.exists() && !tmp.delete()) {
+			throw new IOException("Unable to delete " + tmp);
+		}
+		
+		long size = INITIAL_SIZE;
+		int needed = HEADER_SIZE;
+		
+		for (byte[] payload : payloads) {
+			needed+= HEADER_SIZE + payload.length;
+		}
+		
+		while (size < needed * 2L) {
+			size*= 2;
+		}
+		
+		Mapping mapping = new Mapping();
+		mapping.raf = new RandomAccessFile(tmp, "rw");
+		mapping.channel = mapping.raf.getChannel();
+		
+		try {
+			mapping.buffer = mapping.channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			
+			for (byte[] payload : payloads) {
+				mapping.buffer.putInt(payload.length);
+				mapping.buffer.putInt(this.crc(payload));
+				mapping.buffer.put(payload);
+			}
+			
+			mapping.buffer.force();
+		} catch (IOException e) {
+			mapping.channel.close();
+			mapping.raf.close();
+			throw e;
+		}
+		
+		return mapping;
+	}
+	
+	/**
+	 * Replaces the journal with the compacted file.  Must hold lock
+	 */
+	private void swap(Mapping compacted, int records) throws IOException {
+		File tmp = this.getTmpFile();
+		
+		// the old mapping is released when it is garbage collected
+		channel.close();
+		raf.close();
+		
+		if (!tmp.renameTo(file)) {
+			// e.g. windows does not replace existing files
+			if (!file.delete() || !tmp.renameTo(file)) {
+				throw new IOException("Unable to replace " + file + " with " + tmp);
+			}
+		}
+		
+		raf = compacted.raf;
+		channel = compacted.channel;
+		buffer = compacted.buffer;
+		this.records = records;
+		
+		log.debug("Compacted delayed alert journal to " + records + " records");
+	}
+	
+	private File getTmpFile() {
+		return new File(file.getPath() + ".tmp");
+	}
+	
+	private byte[] write(String journalId, String key, DelayedAlert alert) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		
+		out.writeByte(SCHEDULE);
+		out.writeUTF(journalId);
+		
+		this.writeString(out, key);
+		this.writeString(out, alert.getId() != null ? alert.getId().toString() : null);
+		
+		out.writeLong(alert.getExpectedFireDate().getTime());
+		
+		List<XBeeAddress64> addresses = alert.getRemoteXBeeAddresses();
+		out.writeByte(addresses.size());
+		
+		for (XBeeAddress64 address : addresses) {
+			for (int b : address.getAddress()) {
+				out.writeByte(b);
+			}
+		}
+		
+		out.writeBoolean(alert.isFlashLed());
+		out.writeBoolean(alert.isSoundAlarm());
+		out.writeBoolean(alert.isStoreInHistory());
+		out.writeByte(alert.getPriority().ordinal());
+		
+		IContent content = alert.getContent();
+		
+		out.writeBoolean(content.isErrorMessage());
+		out.writeShort(content.getPages().size());
+		
+		for (Page page : content.getPages()) {
+			out.writeByte(page.getLines().size());
+			
+			for (String line : page.getLines()) {
+				out.writeUTF(line);
+			}
+		}
+		
+		out.flush();
+		return bytes.toByteArray();
+	}
+	
+	private Replayed read(byte[] payload) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		
+		// type and journal id
+		in.readByte();
+		in.readUTF();
+		
+		String key = this.readString(in);
+		String id = this.readString(in);
+		
+		DelayedAlert alert = new DelayedAlert();
+		alert.setId(id);
+		alert.setExpectedFireDate(new Date(in.readLong()));
+		
+		int addresses = in.readByte();
+		
+		for (int i = 0; i < addresses; i++) {
+			int[] address = new int[8];
+			
+			for (int j = 0; j < address.length; j++) {
+				address[j] = in.readUnsignedByte();
+			}
+			
+			alert.addRemoteXBeeAddress(new XBeeAddress64(address));
+		}
+		
+		alert.setFlashLed(in.readBoolean());
+		alert.setSoundAlarm(in.readBoolean());
+		alert.setStoreInHistory(in.readBoolean());
+		alert.setPriority(Alert.Priority.values()[in.readByte()]);
+		
+		Content content = new Content();
+		content.setErrorMessage(in.readBoolean());
+		
+		int pages = in.readShort();
+		
+		for (int i = 0; i < pages; i++) {
+			Page page = new Page(lcdProperties);
+			int lines = in.readByte();
+			
+			for (int j = 0; j < lines; j++) {
+				page.addLine(in.readUTF());
+			}
+			
+			content.getPages().add(page);
+		}
+		
+		alert.setContent(content);
+		
+		return new Replayed(key, alert);
+	}
+	
+	private void writeString(DataOutputStream out, String s) throws IOException {
+		out.writeBoolean(s != null);
+		
+		if (s != null) {
+			out.writeUTF(s);
+		}
+	}
+	
+	private String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+	
+	public synchronized void setCompactThreshold(int compactThreshold) {
+		if (compactThreshold <= 0) {
+			throw new IllegalArgumentException("must be > 0");
+		}
+		
+		this.compactThreshold = compactThreshold;
+	}
+	
+	/**
+	 * Number of alerts pending in the journal
+	 */
+	public synchronized int size() {
+		return live.size();
+	}
+	
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		
+		closed = true;
+		
+		try {
+			buffer.force();
+			channel.close();
+			raf.close();
+		} catch (IOException e) {
+			log.warn("Unable to close delayed alert journal", e);
+		}
+		
+		background.shutdown();
+	}
+}
@@ -0,0 +1,763 @@
+/**
+ * Copyright (c) 2009 Andrew Rapp. All rights reserved.
+ *  
+ * This file is part of Droplet.
+ *  
+ * Droplet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * Droplet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License
+ * along with Droplet.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.droplet.framework.internal;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.rapplogic.droplet.framework.service.DelayedAlert;
+
+/**
+ * Holds DelayedAlerts until their expectedFireDate, in a hierarchical timing wheel.
+ * <p/>
+ * Time is kept in 1 millisecond ticks of System.nanoTime(), so firing is not affected by changes to the
+ * wall clock after an alert is scheduled.  The fire date is converted to a deadline when the alert is offered.
+ * There are 5 levels of 256 slots (level 0 slots are 1ms, level 1 slots are 256ms, ..., level 4 covers about 34 years).
+ * A bucket goes in the lowest level whose span contains its deadline, and moves down a level when the wheel reaches its slot,
+ * so offer and remove are O(1) and a bucket is moved at most 4 times.
+ * <p/>
+ * Alerts with the same expectedFireDate and remote addresses share a bucket, which becomes due as a whole.
+ * takeBucket() returns all alerts of the next due bucket so they can be merged into one alert.
+ * <p/>
+ * take() only wakes up when a slot is due, skipping over empty slots.
+ * <p/>
+ * Alerts are indexed by equals (id and expectedFireDate), so remove(Object) is O(1) and offering an alert 
+ * that is equal to a queued alert replaces it.  Alerts may also be scheduled under a key (see schedule), 
+ * so they can be rescheduled or cancelled in O(1) without knowing their fire date.  peek returns the first due alert, or null if none is due.
+ * The iterator is a snapshot, in no particular order.
+ * <p/>
+ * A Listener (e.g. DelayedAlertJournal) may be notified of every alert that is scheduled and removed (fired, cancelled, replaced).
+ * 
+ * @author andrew
+ *
+ */
+public class DelayedAlertQueue extends AbstractQueue<DelayedAlert> implements BlockingQueue<DelayedAlert> {
+
+	/**
+	 * Notified, while holding the queue lock, when alerts are added and removed.  Must not block
+	 */
+	public interface Listener {
+		public void scheduled(String journalId, Object key, DelayedAlert alert);
+		public void removed(String journalId);
+	}
+	
+	private final static int LEVELS = 5;
+	private final static int SLOT_BITS = 8;
+	private final static int SLOTS = 1 << SLOT_BITS;
+	private final static int SLOT_MASK = SLOTS - 1;
+	
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition available = lock.newCondition();
+	
+	private final long baseNanos = System.nanoTime();
+	
+	// slot heads, by level
+	private final Bucket[][] wheel = new Bucket[LEVELS][SLOTS];
+	// number of buckets in each level
+	private final int[] counts = new int[LEVELS];
+	// buckets beyond the top level (not expected in practice)
+	private final LinkedList<Bucket> overflow = new LinkedList<Bucket>();
+	// due buckets in the order they became due
+	private final LinkedList<Bucket> due = new LinkedList<Bucket>();
+	
+	// pending and due buckets by fire date and addresses
+	private final HashMap<String, Bucket> buckets = new HashMap<String, Bucket>();
+	private final HashMap<DelayedAlert, Entry> index = new HashMap<DelayedAlert, Entry>();
+	private final HashMap<Object, Entry> keys = new HashMap<Object, Entry>();
+	
+	// next tick to process
+	private long currentTick;
+	
+	private long nextJournalId;
+	private Listener listener;
+	
+	/**
+	 * Alerts that fire at the same time for the same remotes
+	 */
+	private static class Bucket {
+		final String id;
+		final long deadlineTick;
+		final LinkedList<Entry> entries = new LinkedList<Entry>();
+		
+		// position in the wheel.  level -1 is due or overflow
+		int level = -1;
+		int slot;
+		Bucket prev;
+		Bucket next;
+		
+		Bucket(String id, long deadlineTick) {
+			this.id = id;
+			this.deadlineTick = deadlineTick;
+		}
+	}
+	
+	private static class Entry {
+		final String journalId;
+		final DelayedAlert alert;
+		final Bucket bucket;
+		// schedule key, if any
+		Object key;
+		
+		Entry(String journalId, DelayedAlert alert, Bucket bucket) {
+			this.journalId = journalId;
+			this.alert = alert;
+			this.bucket = bucket;
+		}
+	}
+	
+	private long nowTick() {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - baseNanos);
+	}
+	
+	private static String getBucketId(DelayedAlert alert) {
+		return alert.getExpectedFireDate().getTime() + "/" + alert.getRemoteXBeeAddresses();
+	}
+	
+	/**
+	 * Must hold lock
+	 */
+	private void place(Bucket bucket) {
+		if (bucket.deadlineTick < currentTick) {
+			bucket.level = -1;
+			due.addLast(bucket);
+			return;
+		}
+		
+		for (int level = 0; level < LEVELS; level++) {
+			int shift = SLOT_BITS * (level + 1);
+			
+			// lowest level where the deadline and current tick agree on all higher digits
+			if ((bucket.deadlineTick >>> shift) == (currentTick >>> shift)) {
+				int slot = (int) (bucket.deadlineTick >>> (SLOT_BITS * level)) & SLOT_MASK;
+				
+				bucket.level = level;
+				bucket.slot = slot;
+				bucket.prev = null;
+				bucket.next = wheel[level][slot];
+				
+				if (bucket.next != null) {
+					bucket.next.prev = bucket;
+				}
+				
+				wheel[level][slot] = bucket;
+				counts[level]++;
+				return;
+			}
+		}
+		
+		bucket.level = -1;
+		overflow.add(bucket);
+	}
+	
+	/**
+	 * Must hold lock
+	 */
+	private void unlink(Bucket bucket) {
+		if (bucket.level < 0) {
+			if (!due.remove(bucket)) {
+				overflow.remove(bucket);
+			}
+			
+			return;
+		}
+		
+		if (bucket.prev != null) {
+			bucket.prev.next = bucket.next;
+		} else {
+			wheel[bucket.level][bucket.slot] = bucket.next;
+		}
+		
+		if (bucket.next != null) {
+			bucket.next.prev = bucket.prev;
+		}
+		
+		counts[bucket.level]--;
+		bucket.prev = null;
+		bucket.next = null;
+	}
+	
+	/**
+	 * Removes all buckets of a slot.  Must hold lock
+	 */
+	private Bucket detachSlot(int level, int slot) {
+		Bucket head = wheel[level][slot];
+		wheel[level][slot] = null;
+		
+		for (Bucket b = head; b != null; b = b.next) {
+			counts[level]--;
+		}
+		
+		return head;
+	}
+	
+	/**
+	 * Moves the buckets of the slots that currentTick has just reached down a level.  Must hold lock
+	 */
+	private void cascade() {
+		// highest level whose slot boundary we are on
+		int top = 0;
+		
+		while (top < LEVELS && (currentTick & ((1L << (SLOT_BITS * (top + 1))) - 1)) == 0) {
+			top++;
+		}
+		
+		if (top == LEVELS && !overflow.isEmpty()) {
+			List<Bucket> pending = new ArrayList<Bucket>(overflow);
+			overflow.clear();
+			
+			for (Bucket bucket : pending) {
+				this.place(bucket);
+			}
+		}
+		
+		for (int level = Math.min(top, LEVELS - 1); level >= 1; level--) {
+			int slot = (int) (currentTick >>> (SLOT_BITS * level)) & SLOT_MASK;
+			Bucket b = this.detachSlot(level, slot);
+			
+			while (b != null) {
+				Bucket next = b.next;
+				this.place(b);
+				b = next;
+			}
+		}
+	}
+	
+	/**
+	 * Processes ticks up to and including nowTick.  Empty stretches of the wheel are skipped.  Must hold lock
+	 */
+	private void advance(long nowTick) {
+		while (currentTick <= nowTick) {
+			if (counts[0] > 0) {
+				int slot = (int) currentTick & SLOT_MASK;
+				Bucket b = this.detachSlot(0, slot);
+				
+				while (b != null) {
+					Bucket next = b.next;
+					b.level = -1;
+					b.prev = null;
+					b.next = null;
+					due.addLast(b);
+					b = next;
+				}
+				
+				currentTick++;
+			} else {
+				// levels 0..empty are empty: jump to the next boundary of the level above
+				int empty = 0;
+				
+				while (empty + 1 < LEVELS && counts[empty + 1] == 0) {
+					empty++;
+				}
+				
+				int shift = SLOT_BITS * (empty + 1);
+				long boundary = ((currentTick >>> shift) + 1) << shift;
+				
+				currentTick = Math.min(boundary, nowTick + 1);
+			}
+			
+			if ((currentTick & SLOT_MASK) == 0) {
+				this.cascade();
+			}
+		}
+	}
+	
+	/**
+	 * Tick of the next slot that is due or must be cascaded, or -1 if the wheel is empty.  Must hold lock
+	 */
+	private long nextEventTick() {
+		long next = -1;
+		
+		for (int level = 0; level < LEVELS; level++) {
+			if (counts[level] == 0) {
+				continue;
+			}
+			
+			int shift = SLOT_BITS * level;
+			long levelBase = (currentTick >>> (shift + SLOT_BITS)) << (shift + SLOT_BITS);
+			
+			for (int slot = (int) (currentTick >>> shift) & SLOT_MASK; slot < SLOTS; slot++) {
+				if (wheel[level][slot] != null) {
+					long tick = Math.max(currentTick, levelBase + ((long) slot << shift));
+					
+					if (next == -1 || tick < next) {
+						next = tick;
+					}
+					
+					break;
+				}
+			}
+		}
+		
+		if (!overflow.isEmpty()) {
+			long tick = ((currentTick >>> (SLOT_BITS * LEVELS)) + 1) << (SLOT_BITS * LEVELS);
+			
+			if (next == -1 || tick < next) {
+				next = tick;
+			}
+		}
+		
+		return next;
+	}
+	
+	/**
+	 * Removes the entry from the indexes.  Must hold lock
+	 */
+	private void forget(Entry entry) {
+		if (index.get(entry.alert) == entry) {
+			index.remove(entry.alert);
+		}
+		
+		if (entry.key != null && keys.get(entry.key) == entry) {
+			keys.remove(entry.key);
+		}
+		
+		if (listener != null) {
+			listener.removed(entry.journalId);
+		}
+	}
+	
+	/**
+	 * Removes the entry from its bucket and the indexes.  Must hold lock
+	 */
+	private void removeEntry(Entry entry) {
+		Bucket bucket = entry.bucket;
+		
+		bucket.entries.remove(entry);
+		
+		if (bucket.entries.isEmpty()) {
+			this.unlink(bucket);
+			buckets.remove(bucket.id);
+		}
+		
+		this.forget(entry);
+	}
+	
+	/**
+	 * Removes the first due bucket.  Must hold lock
+	 */
+	private Bucket pollDueBucket() {
+		this.advance(this.nowTick());
+		
+		if (due.isEmpty()) {
+			return null;
+		}
+		
+		Bucket bucket = due.removeFirst();
+		buckets.remove(bucket.id);
+		
+		for (Entry entry : bucket.entries) {
+			this.forget(entry);
+		}
+		
+		return bucket;
+	}
+	
+	/**
+	 * Must hold lock
+	 */
+	private DelayedAlert pollDue() {
+		this.advance(this.nowTick());
+		
+		if (due.isEmpty()) {
+			return null;
+		}
+		
+		Entry entry = due.getFirst().entries.getFirst();
+		this.removeEntry(entry);
+		
+		return entry.alert;
+	}
+	
+	/**
+	 * Waits until a bucket is due, or the timeout expires.  A negative timeout waits forever.  Must hold lock
+	 * 
+	 * @return false if the timeout expired
+	 */
+	private boolean awaitDue(long timeoutNanos) throws InterruptedException {
+		long deadline = System.nanoTime() + timeoutNanos;
+		
+		while (true) {
+			this.advance(this.nowTick());
+			
+			if (!due.isEmpty()) {
+				return true;
+			}
+			
+			long wait = timeoutNanos < 0 ? Long.MAX_VALUE : deadline - System.nanoTime();
+			
+			if (wait <= 0) {
+				return false;
+			}
+			
+			long next = this.nextEventTick();
+			
+			if (next != -1) {
+				wait = Math.min(wait, TimeUnit.MILLISECONDS.toNanos(Math.max(1, next - this.nowTick())));
+			}
+			
+			if (wait == Long.MAX_VALUE) {
+				available.await();
+			} else {
+				available.awaitNanos(wait);
+			}
+		}
+	}
+	
+	public boolean offer(DelayedAlert alert) {
+		this.schedule(null, alert);
+		return true;
+	}
+	
+	/**
+	 * Queues the alert under the key, replacing any alert that was scheduled with the same key.
+	 * A null key is the same as offer
+	 * 
+	 * @param key
+	 * @param alert
+	 */
+	public void schedule(Object key, DelayedAlert alert) {
+		if (alert == null) {
+			throw new NullPointerException();
+		}
+		
+		lock.lock();
+		
+		try {
+			// bring the wheel up to date so the deadline is placed relative to now
+			this.advance(this.nowTick());
+			
+			Entry existing = index.get(alert);
+			
+			if (existing != null) {
+				this.removeEntry(existing);
+			}
+			
+			if (key != null) {
+				existing = keys.get(key);
+				
+				if (existing != null) {
+					this.removeEntry(existing);
+				}
+			}
+			
+			String bucketId = getBucketId(alert);
+			Bucket bucket = buckets.get(bucketId);
+			
+			if (bucket == null) {
+				long deadlineTick = this.nowTick() + (alert.getExpectedFireDate().getTime() - System.currentTimeMillis());
+				
+				bucket = new Bucket(bucketId, deadlineTick);
+				buckets.put(bucketId, bucket);
+				this.place(bucket);
+			}
+			
+			Entry entry = new Entry(String.valueOf(nextJournalId++), alert, bucket);
+			entry.key = key;
+			bucket.entries.add(entry);
+			index.put(alert, entry);
+			
+			if (key != null) {
+				keys.put(key, entry);
+			}
+			
+			if (listener != null) {
+				listener.scheduled(entry.journalId, key, alert);
+			}
+			
+			// the taker may need to wake up sooner
+			available.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Removes the alert scheduled with the key
+	 * 
+	 * @param key
+	 * @return false if no alert is queued with the key (e.g. it already fired)
+	 */
+	public boolean cancel(Object key) {
+		lock.lock();
+		
+		try {
+			Entry entry = keys.get(key);
+			
+			if (entry == null) {
+				return false;
+			}
+			
+			this.removeEntry(entry);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns the alert queued with the key, or null
+	 */
+	public DelayedAlert get(Object key) {
+		lock.lock();
+		
+		try {
+			Entry entry = keys.get(key);
+			return entry != null ? entry.alert : null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean offer(DelayedAlert alert, long timeout, TimeUnit unit) {
+		return this.offer(alert);
+	}
+
+	public void put(DelayedAlert alert) {
+		this.offer(alert);
+	}
+	
+	public DelayedAlert poll() {
+		lock.lock();
+		
+		try {
+			return this.pollDue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public DelayedAlert take() throws InterruptedException {
+		lock.lockInterruptibly();
+		
+		try {
+			this.awaitDue(-1);
+			return this.pollDue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public DelayedAlert poll(long timeout, TimeUnit unit) throws InterruptedException {
+		lock.lockInterruptibly();
+		
+		try {
+			if (!this.awaitDue(unit.toNanos(timeout))) {
+				return null;
+			}
+			
+			return this.pollDue();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Waits for the next due bucket and returns all of its alerts, in the order they were scheduled.
+	 * These alerts have the same expectedFireDate and remote addresses
+	 */
+	public List<DelayedAlert> takeBucket() throws InterruptedException {
+		lock.lockInterruptibly();
+		
+		try {
+			this.awaitDue(-1);
+			
+			List<DelayedAlert> alerts = new ArrayList<DelayedAlert>();
+			
+			for (Entry entry : this.pollDueBucket().entries) {
+				alerts.add(entry.alert);
+			}
+			
+			return alerts;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the first due alert without removing it, or null if no alert is due
+	 */
+	public DelayedAlert peek() {
+		lock.lock();
+		
+		try {
+			this.advance(this.nowTick());
+			return due.isEmpty() ? null : due.getFirst().entries.getFirst().alert;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Removes the queued alert that is equal to o (same id and expectedFireDate)
+	 */
+	public boolean remove(Object o) {
+		lock.lock();
+		
+		try {
+			Entry entry = index.get(o);
+			
+			if (entry == null) {
+				return false;
+			}
+			
+			this.removeEntry(entry);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public boolean contains(Object o) {
+		lock.lock();
+		
+		try {
+			return index.containsKey(o);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public int size() {
+		lock.lock();
+		
+		try {
+			return index.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int remainingCapacity() {
+		return Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Removes all due alerts
+	 */
+	public int drainTo(Collection<? super DelayedAlert> c) {
+		return this.drainTo(c, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Removes due alerts
+	 */
+	public int drainTo(Collection<? super DelayedAlert> c, int maxElements) {
+		if (c == this) {
+			throw new IllegalArgumentException();
+		}
+		
+		lock.lock();
+		
+		try {
+			int n = 0;
+			DelayedAlert alert;
+			
+			while (n < maxElements && (alert = this.pollDue()) != null) {
+				c.add(alert);
+				n++;
+			}
+			
+			return n;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public void clear() {
+		lock.lock();
+		
+		try {
+			if (listener != null) {
+				for (Entry entry : index.values()) {
+					listener.removed(entry.journalId);
+				}
+			}
+			
+			for (int level = 0; level < LEVELS; level++) {
+				for (int slot = 0; slot < SLOTS; slot++) {
+					wheel[level][slot] = null;
+				}
+				
+				counts[level] = 0;
+			}
+			
+			overflow.clear();
+			due.clear();
+			buckets.clear();
+			index.clear();
+			keys.clear();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Sets the listener that is notified of scheduled and removed alerts.  Alerts that are already queued are not reported
+	 */
+	public void setListener(Listener listener) {
+		lock.lock();
+		
+		try {
+			this.listener = listener;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Snapshot of queued alerts, in no particular order
+	 */
+	public Iterator<DelayedAlert> iterator() {
+		List<DelayedAlert> snapshot;
+		
+		lock.lock();
+		
+		try {
+			snapshot = new ArrayList<DelayedAlert>(index.keySet());
+		} finally {
+			lock.unlock();
+		}
+		
+		final Iterator<DelayedAlert> i = snapshot.iterator();
+		
+		return new Iterator<DelayedAlert>() {
+			public boolean hasNext() {
+				return i.hasNext();
+			}
+
+			public DelayedAlert next() {
+				return i.next();
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+}
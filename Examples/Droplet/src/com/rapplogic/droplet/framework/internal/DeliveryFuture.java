@@ -0,0 +1,204 @@
+/**
+ * Copyright (c) 2009 Andrew Rapp. All rights reserved.
+ *  
+ * This file is part of Droplet.
+ *  
+ * Droplet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * Droplet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License
+ * along with Droplet.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.droplet.framework.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+
+import com.rapplogic.droplet.framework.DeliveryException;
+import com.rapplogic.droplet.framework.Message;
+import com.rapplogic.xbee.api.zigbee.ZNetTxStatusResponse;
+
+/**
+ * The pending result of a single ZNetTxRequest.  Completes when the local XBee
+ * returns the TX Status Response for the frame id, or when the send timeout expires.
+ * <p/>
+ * A transmission cannot be recalled once it has been written to the radio, so cancel
+ * always returns false.
+ * 
+ * @author andrew
+ *
+ */
+public class DeliveryFuture implements Future<ZNetTxStatusResponse> {
+
+	private final static Logger log = Logger.getLogger(DeliveryFuture.class);
+	
+	private final Message message;
+	private final CountDownLatch latch = new CountDownLatch(1);
+	private final List<DeliveryListener> listeners = new ArrayList<DeliveryListener>();
+	
+	private ZNetTxStatusResponse response;
+	private DeliveryException exception;
+	private boolean done;
+	
+	private int frameId;
+	private long sendTime;
+	
+	public DeliveryFuture(Message message) {
+		this.message = message;
+	}
+	
+	public Message getMessage() {
+		return message;
+	}
+
+	public int getFrameId() {
+		return frameId;
+	}
+
+	public void setFrameId(int frameId) {
+		this.frameId = frameId;
+	}
+
+	/**
+	 * System.nanoTime() when the request was written to the radio
+	 */
+	public long getSendTime() {
+		return sendTime;
+	}
+
+	public void setSendTime(long sendTime) {
+		this.sendTime = sendTime;
+	}
+
+	/**
+	 * Adds a listener to be notified on completion.  If the delivery has already 
+	 * completed, the listener is called immediately in the calling thread.
+	 */
+	public void addListener(DeliveryListener listener) {
+		synchronized (this) {
+			if (!done) {
+				listeners.add(listener);
+				return;
+			}
+		}
+		
+		this.notifyListener(listener);
+	}
+	
+	/**
+	 * Completes with the TX Status Response.  A non-success delivery status
+	 * completes the future with a DeliveryException.
+	 * A null response indicates the message was not sent because the XBee is disabled
+	 */
+	public void setResponse(ZNetTxStatusResponse response) {
+		if (response != null && !response.isSuccess()) {
+			// it's easy to create this error by unplugging/powering off your remote xbee.  when doing so I get: packet failed due to error: ADDRESS_NOT_FOUND
+			this.complete(response, new DeliveryException("Packet delivery failed due to error: " + response.getDeliveryStatus()));
+		} else {
+			this.complete(response, null);
+		}
+	}
+	
+	public void setException(DeliveryException exception) {
+		this.complete(null, exception);
+	}
+	
+	private void complete(ZNetTxStatusResponse response, DeliveryException exception) {
+		List<DeliveryListener> toNotify;
+		
+		synchronized (this) {
+			if (done) {
+				log.debug("delivery already complete, ignoring result for frame id " + frameId);
+				return;
+			}
+			
+			this.response = response;
+			this.exception = exception;
+			this.done = true;
+			
+			toNotify = new ArrayList<DeliveryListener>(listeners);
+			listeners.clear();
+		}
+		
+		latch.countDown();
+		
+		for (DeliveryListener listener : toNotify) {
+			this.notifyListener(listener);
+		}
+	}
+	
+	private void notifyListener(DeliveryListener listener) {
+		try {
+			listener.deliveryComplete(this);
+		} catch (Exception e) {
+			log.error("Delivery listener threw exception", e);
+		}
+	}
+
+	/**
+	 * True if the remote XBee acknowledged the packet
+	 */
+	public synchronized boolean isSuccess() {
+		return done && exception == null;
+	}
+	
+	public synchronized DeliveryException getException() {
+		return exception;
+	}
+	
+	public synchronized ZNetTxStatusResponse getResponse() {
+		return response;
+	}
+	
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	public boolean isCancelled() {
+		return false;
+	}
+
+	public synchronized boolean isDone() {
+		return done;
+	}
+	
+	public ZNetTxStatusResponse get() throws InterruptedException, ExecutionException {
+		latch.await();
+		return this.getResult();
+	}
+
+	public ZNetTxStatusResponse get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if (!latch.await(timeout, unit)) {
+			throw new TimeoutException();
+		}
+		
+		return this.getResult();
+	}
+	
+	private synchronized ZNetTxStatusResponse getResult() throws ExecutionException {
+		if (exception != null) {
+			throw new ExecutionException(exception);
+		}
+		
+		return response;
+	}
+	
+	public String toString() {
+		return "frameId=" + frameId + ",done=" + done + ",success=" + (done && exception == null) + "," + message;
+	}
+}
@@ -0,0 +1,574 @@
+/**
+ * Copyright (c) 2009 Andrew Rapp. All rights reserved.
+ *  
+ * This file is part of Droplet.
+ *  
+ * Droplet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * Droplet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License
+ * along with Droplet.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.droplet.framework.internal;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.rapplogic.droplet.framework.DeliveryException;
+import com.rapplogic.droplet.framework.Message;
+import com.rapplogic.droplet.framework.service.Alert;
+
+/**
+ * Queues outgoing messages in one lane per remote XBee so that a remote that is offline
+ * (e.g. ADDRESS_NOT_FOUND after the full send timeout) only delays its own messages.
+ * <p/>
+ * Each lane has its own queue and may have at most laneBudget messages awaiting an ACK.  A budget of 1 
+ * (the default) preserves the order of messages to a remote.  Lanes with queued messages and 
+ * available budget are served round-robin, at most quantum messages per turn, so every
+ * ready lane is served within one pass over the ready lanes.  Lanes with a pull response or emergency
+ * alert at the head of the queue go ahead of the other ready lanes, in turn with other urgent lanes.
+ * <p/>
+ * Starvation of normal alerts is bounded, within a lane and across lanes: a normal alert goes ahead of 
+ * emergency alerts and urgent lanes once it has waited longer than maxNormalWaitMillis, or after 
+ * maxUrgentBurst urgent messages (or urgent lane turns) in a row while it was waiting.
+ * <p/>
+ * Sending never blocks: if the transmitter window is full, the lanes are pumped again when
+ * a slot is freed (see AsyncTransmitter.setWindowListener).
+ * 
+ * @author andrew
+ *
+ */
+public class DeliveryLanes {
+
+	private final static Logger log = Logger.getLogger(DeliveryLanes.class);
+	
+	/**
+	 * Transmits a message if there is room in the window
+	 */
+	public interface Transport {
+		/**
+		 * @return the pending delivery, or null if the transmit window is full
+		 */
+		public DeliveryFuture transmit(Message message);
+	}
+	
+	private final Transport transport;
+	
+	// keyed by address string since XBeeAddress64 does not implement hashCode
+	private final HashMap<String, Lane> lanes = new HashMap<String, Lane>();
+	// lanes that have queued messages and budget, in service order
+	private final LinkedList<Lane> ready = new LinkedList<Lane>();
+	
+	private int laneBudget = 1;
+	private int quantum = 1;
+	private int maxQueueSize = 50;
+	private long maxNormalWaitMillis = 30000;
+	private int maxUrgentBurst = 5;
+	
+	// urgent lane turns in a row while a normal lane was ready
+	private int urgentTurns;
+	
+	private volatile LatencyHistogram waitHistogram;
+	
+	private boolean pumping;
+	private boolean pumpAgain;
+	
+	// lane being served by the pump, out of the ready lanes, and the messages sent in its turn
+	private Lane current;
+	private int sentInTurn;
+	
+	// starvation counters before the last entry was taken, restored if the window is full
+	private int lastUrgentTurns;
+	private int lastEmergencyBurst;
+	
+	public DeliveryLanes(Transport transport) {
+		this.transport = transport;
+	}
+	
+	// service order within a lane
+	private final static int RESPONSE = 0;
+	private final static int EMERGENCY = 1;
+	private final static int NORMAL = 2;
+	
+	private static class Entry {
+		Message message;
+		DeliveryListener listener;
+		int rank;
+		// System.nanoTime() when queued
+		final long queueTime = System.nanoTime();
+		
+		Entry(Message message, DeliveryListener listener, int rank) {
+			this.message = message;
+			this.listener = listener;
+			this.rank = rank;
+		}
+	}
+	
+	private class Lane implements DeliveryListener {
+		final String key;
+		final LinkedList<Entry> queue = new LinkedList<Entry>();
+		int inFlight;
+		// in the ready lanes
+		boolean isReady;
+		// taking its turn in the pump
+		boolean serving;
+		// emergency alerts taken in a row while a normal alert was waiting
+		int emergencyBurst;
+		
+		Lane(String key) {
+			this.key = key;
+		}
+		
+		boolean canSend() {
+			return !queue.isEmpty() && inFlight < laneBudget;
+		}
+		
+		boolean isUrgent() {
+			return !queue.isEmpty() && queue.getFirst().rank < NORMAL;
+		}
+		
+		public void deliveryComplete(DeliveryFuture future) {
+			synchronized (DeliveryLanes.this) {
+				inFlight--;
+				markReady(this);
+			}
+			
+			pump();
+		}
+	}
+	
+	/**
+	 * Queues the message in the lane of its remote address and sends it when the lane 
+	 * and window allow.  The listener is notified of the delivery outcome.
+	 * <p/>
+	 * Emergency alerts are queued ahead of other alerts for the remote and their lane is moved 
+	 * to the front of the ready lanes, so they take the next free slot in the window
+	 */
+	public void offer(Message message, DeliveryListener listener) {
+		if (message instanceof Alert && ((Alert) message).isEmergency()) {
+			this.offer(message, listener, EMERGENCY);
+		} else {
+			this.offer(message, listener, NORMAL);
+		}
+	}
+	
+	/**
+	 * Queues a pull-service response ahead of any queued alerts for the remote, since 
+	 * the user is waiting for it.  Responses are never rejected.
+	 */
+	public void offerResponse(Message message, DeliveryListener listener) {
+		this.offer(message, listener, RESPONSE);
+	}
+	
+	private void offer(Message message, DeliveryListener listener, int rank) {
+		
+		boolean rejected = false;
+		
+		synchronized (this) {
+			Lane lane = this.getLane(message);
+			
+			if (rank == NORMAL && lane.queue.size() >= maxQueueSize) {
+				log.warn("Delivery lane for " + lane.key + " is full (" + lane.queue.size() + " messages).. rejecting message");
+				rejected = true;
+			} else {
+				// after entries of the same or higher rank
+				int index = 0;
+				
+				while (index < lane.queue.size() && lane.queue.get(index).rank <= rank) {
+					index++;
+				}
+				
+				lane.queue.add(index, new Entry(message, listener, rank));
+				
+				this.markReady(lane);
+			}
+		}
+		
+		if (rejected) {
+			DeliveryFuture future = new DeliveryFuture(message);
+			future.addListener(listener);
+			future.setException(new DeliveryException("Delivery queue is full for remote " + message.getRemoteXBeeAddress()));
+			return;
+		}
+		
+		this.pump();
+	}
+	
+	/**
+	 * Sends queued messages, round-robin across ready lanes, until no lane can send or the window is full.
+	 * Safe to call from any thread, including delivery listeners.  Messages are transmitted and listeners 
+	 * attached without holding the lanes lock.
+	 */
+	public void pump() {
+		
+		synchronized (this) {
+			if (pumping) {
+				// another thread is sending.  it makes another pass before it stops
+				pumpAgain = true;
+				return;
+			}
+			
+			pumping = true;
+			pumpAgain = false;
+		}
+		
+		while (true) {
+			Entry entry;
+			Lane lane;
+			
+			synchronized (this) {
+				entry = this.next();
+				lane = current;
+				
+				if (entry == null) {
+					if (pumpAgain) {
+						// a message was offered or a slot freed while we were sending
+						pumpAgain = false;
+						continue;
+					}
+					
+					pumping = false;
+					return;
+				}
+			}
+			
+			DeliveryFuture future = transport.transmit(entry.message);
+			
+			if (future == null) {
+				synchronized (this) {
+					// window is full.  resume with this lane when a slot is freed
+					lane.queue.addFirst(entry);
+					lane.inFlight--;
+					lane.emergencyBurst = lastEmergencyBurst;
+					
+					if (sentInTurn == 1) {
+						// the turn did not happen
+						urgentTurns = lastUrgentTurns;
+					}
+					
+					this.endTurn(true);
+					
+					if (pumpAgain) {
+						pumpAgain = false;
+						continue;
+					}
+					
+					pumping = false;
+					return;
+				}
+			}
+			
+			LatencyHistogram histogram = waitHistogram;
+			
+			if (histogram != null && entry.rank != RESPONSE) {
+				histogram.recordSince(entry.queueTime);
+			}
+			
+			// may complete right away (e.g. XBee disabled), in which case the lane listener requests another pass
+			future.addListener(entry.listener);
+			future.addListener(lane);
+		}
+	}
+
+	/**
+	 * Takes the next entry to send from the current lane, or moves on to the next ready lane.
+	 * Must hold lock
+	 * 
+	 * @return null if no lane can send
+	 */
+	private Entry next() {
+		while (current == null || !current.canSend() || sentInTurn >= quantum) {
+			if (current != null) {
+				this.endTurn(false);
+			}
+			
+			if (ready.isEmpty()) {
+				return null;
+			}
+			
+			lastUrgentTurns = urgentTurns;
+			current = this.nextLane();
+			current.isReady = false;
+			current.serving = true;
+			sentInTurn = 0;
+		}
+		
+		sentInTurn++;
+		current.inFlight++;
+		lastEmergencyBurst = current.emergencyBurst;
+		
+		return this.take(current);
+	}
+	
+	/**
+	 * Removes the next ready lane: the first, unless it is urgent and a normal lane has waited too long.  Must hold lock
+	 */
+	private Lane nextLane() {
+		Lane first = ready.getFirst();
+		
+		if (!first.isUrgent()) {
+			urgentTurns = 0;
+			return ready.removeFirst();
+		}
+		
+		// normal lanes are added at the back, so the first one has waited longest
+		for (Lane lane : ready) {
+			if (!lane.isUrgent()) {
+				if (urgentTurns >= maxUrgentBurst || this.isStarved(lane.queue.getFirst())) {
+					urgentTurns = 0;
+					ready.remove(lane);
+					return lane;
+				}
+				
+				urgentTurns++;
+				break;
+			}
+		}
+		
+		return ready.removeFirst();
+	}
+	
+	/**
+	 * Removes the next entry of the lane: the first, unless it is an emergency alert and a normal alert 
+	 * in the lane has waited too long.  Responses always go first.  Must hold lock
+	 */
+	private Entry take(Lane lane) {
+		Entry first = lane.queue.getFirst();
+		
+		if (first.rank != EMERGENCY) {
+			lane.emergencyBurst = 0;
+			return lane.queue.removeFirst();
+		}
+		
+		for (Iterator<Entry> i = lane.queue.iterator(); i.hasNext();) {
+			Entry entry = i.next();
+			
+			if (entry.rank == NORMAL) {
+				if (lane.emergencyBurst >= maxUrgentBurst || this.isStarved(entry)) {
+					lane.emergencyBurst = 0;
+					i.remove();
+					return entry;
+				}
+				
+				lane.emergencyBurst++;
+				break;
+			}
+		}
+		
+		return lane.queue.removeFirst();
+	}
+	
+	private boolean isStarved(Entry entry) {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - entry.queueTime) >= maxNormalWaitMillis;
+	}
+	
+	/**
+	 * Puts the current lane back in the ready lanes if it can still send.  Must hold lock
+	 * 
+	 * @param windowFull if true the lane goes to the front, to resume when a slot is freed
+	 */
+	private void endTurn(boolean windowFull) {
+		Lane lane = current;
+		current = null;
+		lane.serving = false;
+		
+		if (lane.canSend()) {
+			lane.isReady = true;
+			
+			if (windowFull) {
+				ready.addFirst(lane);
+			} else {
+				// back of the line, even if urgent, so one remote can't hog the window
+				ready.addLast(lane);
+			}
+		} else if (lane.queue.isEmpty() && lane.inFlight == 0) {
+			lanes.remove(lane.key);
+		}
+	}
+	
+	/**
+	 * Must hold lock
+	 */
+	private void markReady(Lane lane) {
+		if (lane.serving) {
+			// the pump puts it back when its turn ends
+			return;
+		}
+		
+		if (lane.isReady && lane.isUrgent() && !this.isAmongUrgent(lane)) {
+			// response or emergency arrived in a lane that is already waiting its turn
+			ready.remove(lane);
+			this.addUrgent(lane);
+		} else if (!lane.isReady && lane.canSend()) {
+			lane.isReady = true;
+			
+			if (lane.isUrgent()) {
+				this.addUrgent(lane);
+			} else {
+				ready.addLast(lane);
+			}
+		} else if (lane.queue.isEmpty() && lane.inFlight == 0 && !lane.isReady) {
+			lanes.remove(lane.key);
+		}
+	}
+	
+	/**
+	 * Adds the lane after the urgent lanes at the front, so urgent lanes take turns too.  Must hold lock
+	 */
+	private void addUrgent(Lane lane) {
+		int index = 0;
+		
+		while (index < ready.size() && ready.get(index).isUrgent()) {
+			index++;
+		}
+		
+		ready.add(index, lane);
+	}
+	
+	/**
+	 * True if no normal lane is ahead of the lane.  Must hold lock
+	 */
+	private boolean isAmongUrgent(Lane lane) {
+		for (Lane other : ready) {
+			if (other == lane) {
+				return true;
+			}
+			
+			if (!other.isUrgent()) {
+				return false;
+			}
+		}
+		
+		return false;
+	}
+	
+	private Lane getLane(Message message) {
+		String key = message.getRemoteXBeeAddress().toString();
+		Lane lane = lanes.get(key);
+		
+		if (lane == null) {
+			lane = new Lane(key);
+			lanes.put(key, lane);
+		}
+		
+		return lane;
+	}
+	
+	/**
+	 * Number of messages waiting in all lanes or sent and not yet complete
+	 */
+	public synchronized int getPendingCount() {
+		int count = 0;
+		
+		for (Lane lane : lanes.values()) {
+			count += lane.queue.size() + lane.inFlight;
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Number of messages waiting in all lanes
+	 */
+	public synchronized int getQueuedCount() {
+		int count = 0;
+		
+		for (Lane lane : lanes.values()) {
+			count += lane.queue.size();
+		}
+		
+		return count;
+	}
+	
+	public synchronized int getLaneBudget() {
+		return laneBudget;
+	}
+
+	/**
+	 * Maximum number of messages per remote that may await an ACK.  Default is 1, which 
+	 * guarantees in-order delivery to each remote
+	 */
+	public synchronized void setLaneBudget(int laneBudget) {
+		if (laneBudget <= 0) {
+			throw new IllegalArgumentException("must be > 0");
+		}
+		
+		this.laneBudget = laneBudget;
+	}
+
+	public synchronized int getQuantum() {
+		return quantum;
+	}
+
+	/**
+	 * Maximum number of messages sent from a lane before moving to the next lane.  Default is 1
+	 */
+	public synchronized void setQuantum(int quantum) {
+		if (quantum <= 0) {
+			throw new IllegalArgumentException("must be > 0");
+		}
+		
+		this.quantum = quantum;
+	}
+
+	public synchronized int getMaxQueueSize() {
+		return maxQueueSize;
+	}
+
+	/**
+	 * Maximum number of messages queued per remote.  Messages offered to a full lane fail 
+	 * with a DeliveryException.  Default is 50
+	 */
+	public synchronized void setMaxQueueSize(int maxQueueSize) {
+		this.maxQueueSize = maxQueueSize;
+	}
+	
+	public synchronized long getMaxNormalWaitMillis() {
+		return maxNormalWaitMillis;
+	}
+
+	/**
+	 * A normal alert that has waited this long is sent before emergency alerts and urgent lanes.  Default is 30000
+	 */
+	public synchronized void setMaxNormalWaitMillis(long maxNormalWaitMillis) {
+		if (maxNormalWaitMillis < 0) {
+			throw new IllegalArgumentException("must be >= 0");
+		}
+		
+		this.maxNormalWaitMillis = maxNormalWaitMillis;
+	}
+
+	public synchronized int getMaxUrgentBurst() {
+		return maxUrgentBurst;
+	}
+
+	/**
+	 * Maximum number of urgent messages, or urgent lane turns, in a row while a normal alert is waiting.  Default is 5
+	 */
+	public synchronized void setMaxUrgentBurst(int maxUrgentBurst) {
+		if (maxUrgentBurst <= 0) {
+			throw new IllegalArgumentException("must be > 0");
+		}
+		
+		this.maxUrgentBurst = maxUrgentBurst;
+	}
+	
+	/**
+	 * Records how long each alert waited in its lane before it was sent
+	 */
+	public void setWaitHistogram(LatencyHistogram waitHistogram) {
+		this.waitHistogram = waitHistogram;
+	}
+}
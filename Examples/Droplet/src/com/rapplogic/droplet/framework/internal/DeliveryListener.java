@@ -0,0 +1,32 @@
+/**
+ * Copyright (c) 2009 Andrew Rapp. All rights reserved.
+ *  
+ * This file is part of Droplet.
+ *  
+ * Droplet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * Droplet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License
+ * along with Droplet.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.droplet.framework.internal;
+
+/**
+ * Callback for the outcome of an asynchronous transmission.
+ * Listeners are called from the thread that completes the delivery (main loop
+ * for TX status, timer thread for timeouts), so they should not block.
+ * 
+ * @author andrew
+ *
+ */
+public interface DeliveryListener {
+	public void deliveryComplete(DeliveryFuture future);
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright (c) 2009 Andrew Rapp. All rights reserved.
+ *  
+ * This file is part of Droplet.
+ *  
+ * Droplet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * Droplet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License
+ * along with Droplet.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.droplet.framework.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with log-linear buckets (16 linear sub-buckets per power of two), 
+ * so any recorded value is reported within 6.25% of its actual value.  Values are kept in microseconds
+ * up to about 12 days; longer values go in the last bucket.
+ * <p/>
+ * Recording is a few atomic increments, so it is safe to call on the RX and TX paths.
+ * 
+ * @author andrew
+ *
+ */
+public class LatencyHistogram {
+
+	private final static int SUB_BUCKET_BITS = 4;
+	private final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private final static int MAX_EXPONENT = 40;
+	private final static int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+	
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong totalMicros = new AtomicLong();
+	private final AtomicLong maxMicros = new AtomicLong();
+	
+	/**
+	 * Records a latency
+	 * 
+	 * @param nanos
+	 */
+	public void record(long nanos) {
+		long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(0, nanos));
+		
+		counts.incrementAndGet(index(micros));
+		count.incrementAndGet();
+		totalMicros.addAndGet(micros);
+		
+		long max;
+		
+		while (micros > (max = maxMicros.get())) {
+			if (maxMicros.compareAndSet(max, micros)) {
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Records the time since startNanos (a System.nanoTime() value)
+	 */
+	public void recordSince(long startNanos) {
+		this.record(System.nanoTime() - startNanos);
+	}
+	
+	static int index(long micros) {
+		if (micros < SUB_BUCKETS) {
+			return (int) micros;
+		}
+		
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		
+		if (exponent > MAX_EXPONENT) {
+			return BUCKETS - 1;
+		}
+		
+		int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+	}
+	
+	/**
+	 * Largest value that goes in the bucket
+	 */
+	static long highestValue(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		
+		int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+		long subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+		
+		return ((SUB_BUCKETS + subBucket + 1) << shift) - 1;
+	}
+	
+	public long getCount() {
+		return count.get();
+	}
+	
+	public long getMaxMicros() {
+		return maxMicros.get();
+	}
+	
+	public long getMeanMicros() {
+		long n = count.get();
+		return n == 0 ? 0 : totalMicros.get() / n;
+	}
+	
+	/**
+	 * Returns the value at the percentile (e.g. 99.0), in microseconds, or 0 if nothing was recorded.
+	 * Concurrent recording may make this slightly inconsistent with getCount
+	 * 
+	 * @param percentile
+	 * @return
+	 */
+	public long getPercentileMicros(double percentile) {
+		if (percentile < 0 || percentile > 100) {
+			throw new IllegalArgumentException("percentile must be between 0 and 100");
+		}
+		
+		long total = 0;
+		
+		for (int i = 0; i < BUCKETS; i++) {
+			total+= counts.get(i);
+		}
+		
+		if (total == 0) {
+			return 0;
+		}
+		
+		long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+		long seen = 0;
+		
+		for (int i = 0; i < BUCKETS; i++) {
+			seen+= counts.get(i);
+			
+			if (seen >= rank) {
+				return Math.min(highestValue(i), maxMicros.get());
+			}
+		}
+		
+		return maxMicros.get();
+	}
+	
+	public String toString() {
+		return "count=" + this.getCount() + ",mean=" + this.getMeanMicros() + "us,p50=" + this.getPercentileMicros(50) + "us,p99=" + this.getPercentileMicros(99) + "us,max=" + this.getMaxMicros() + "us";
+	}
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright (c) 2009 Andrew Rapp. All rights reserved.
+ *  
+ * This file is part of Droplet.
+ *  
+ * Droplet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * Droplet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License
+ * along with Droplet.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.droplet.framework.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.rapplogic.droplet.framework.DeliveryException;
+import com.rapplogic.droplet.framework.service.Alert;
+import com.rapplogic.droplet.framework.text.Content;
+
+/**
+ * An alert made of the pages of several alerts to the same remote, so they can be sent as one multi-page alert.
+ * The LED/alarm flags are set if any of the alerts sets them, and the priority is EMERGENCY if any alert is an emergency.
+ * If delivery fails, handleError is called on each of the original alerts.
+ * 
+ * @author andrew
+ *
+ */
+public class MergedAlert extends Alert {
+
+	private final static Logger log = Logger.getLogger(MergedAlert.class);
+	
+	private final List<Alert> alerts;
+	private boolean digest;
+	
+	private MergedAlert(List<? extends Alert> alerts) {
+		this.alerts = Collections.unmodifiableList(new ArrayList<Alert>(alerts));
+	}
+	
+	/**
+	 * Merges alerts, in order.  All alerts must have the same remote addresses.  Returns the alert itself if there is only one
+	 * 
+	 * @param alerts
+	 * @return
+	 */
+	public static Alert merge(List<? extends Alert> alerts) {
+		if (alerts.isEmpty()) {
+			throw new IllegalArgumentException("nothing to merge");
+		}
+		
+		if (alerts.size() == 1) {
+			return alerts.get(0);
+		}
+		
+		return combine(alerts);
+	}
+	
+	/**
+	 * Merges alerts that were held back, in order, into a digest that never sounds the alarm, even if one of the alerts does.
+	 * Always returns a new alert, so the original alerts are not changed
+	 * 
+	 * @param alerts
+	 * @return
+	 */
+	public static Alert digest(List<? extends Alert> alerts) {
+		if (alerts.isEmpty()) {
+			throw new IllegalArgumentException("nothing to merge");
+		}
+		
+		MergedAlert digest = combine(alerts);
+		digest.setSoundAlarm(false);
+		digest.digest = true;
+		
+		return digest;
+	}
+	
+	private static MergedAlert combine(List<? extends Alert> alerts) {
+		MergedAlert merged = new MergedAlert(alerts);
+		merged.setRemoteXBeeAddresses(alerts.get(0).getRemoteXBeeAddresses());
+		merged.setFlashLed(false);
+		merged.setStoreInHistory(false);
+		
+		Content content = new Content();
+		
+		for (Alert alert : alerts) {
+			if (!alert.getRemoteXBeeAddresses().equals(merged.getRemoteXBeeAddresses())) {
+				throw new IllegalArgumentException("Alerts must have the same remote address: " + alert);
+			}
+			
+			content.addPages(alert.getContent().getPages());
+			
+			merged.setFlashLed(merged.isFlashLed() || alert.isFlashLed());
+			merged.setSoundAlarm(merged.isSoundAlarm() || alert.isSoundAlarm());
+			merged.setStoreInHistory(merged.isStoreInHistory() || alert.isStoreInHistory());
+			
+			if (alert.isEmergency()) {
+				merged.setPriority(Priority.EMERGENCY);
+			}
+		}
+		
+		merged.setContent(content);
+		
+		return merged;
+	}
+	
+	/**
+	 * The original alerts
+	 */
+	public List<Alert> getAlerts() {
+		return alerts;
+	}
+	
+	/**
+	 * True if this is a digest of held alerts, which must not sound the alarm
+	 */
+	public boolean isDigest() {
+		return digest;
+	}
+	
+	@Override
+	public void handleError(DeliveryException e) {
+		for (Alert alert : alerts) {
+			try {
+				alert.handleError(e);	
+			} catch (Exception f) {
+				log.warn("handleError failed for alert " + alert, f);
+			}
+		}
+	}
+}
@@ -0,0 +1,431 @@
+/**
+ * Copyright (c) 2009 Andrew Rapp. All rights reserved.
+ *  
+ * This file is part of Droplet.
+ *  
+ * Droplet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * Droplet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License
+ * along with Droplet.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.droplet.framework.internal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.rapplogic.droplet.framework.DeliveryException;
+import com.rapplogic.droplet.framework.service.Alert;
+import com.rapplogic.xbee.api.XBeeAddress64;
+
+/**
+ * Holds alerts that could not be delivered, per remote, until the remote is reachable again.
+ * <p/>
+ * Each remote's backlog is retried on a backoff schedule (initialRetryMillis, doubling up to maxRetryMillis)
+ * and flushed immediately when the remote is known to be reachable (e.g. any RX packet from it).  A flush sends 
+ * the whole backlog as one merged multi-page alert.  If the flush fails, the alerts go back in the backlog.
+ * <p/>
+ * A backlog holds at most maxAlertsPerRemote alerts; the oldest alert is given up when it is full.  Alerts that
+ * have waited longer than maxAgeMillis are also given up.  Alerts that are given up get handleError.
+ * 
+ * @author andrew
+ *
+ */
+public class MissedAlertQueue {
+
+	private final static Logger log = Logger.getLogger(MissedAlertQueue.class);
+	
+	/**
+	 * Sends a flushed backlog
+	 */
+	public interface Redelivery {
+		/**
+		 * Must call delivered or failed when the delivery completes.  Must not block
+		 */
+		public void redeliver(Alert alert);
+	}
+	
+	private final ScheduledExecutorService timer;
+	private final Redelivery redelivery;
+	
+	// keyed by address string since XBeeAddress64 does not implement hashCode
+	private final HashMap<String, Backlog> backlogs = new HashMap<String, Backlog>();
+	
+	private int maxAlertsPerRemote = 20;
+	private long initialRetryMillis = 30000;
+	private long maxRetryMillis = 10 * 60 * 1000;
+	private long maxAgeMillis = 12 * 60 * 60 * 1000;
+	
+	private long redeliveries;
+	private long givenUp;
+	
+	private static class Missed {
+		final Alert alert;
+		// System.nanoTime() when first missed
+		final long missedTime;
+		
+		Missed(Alert alert, long missedTime) {
+			this.alert = alert;
+			this.missedTime = missedTime;
+		}
+	}
+	
+	private class Backlog implements Runnable {
+		final String key;
+		final LinkedList<Missed> alerts = new LinkedList<Missed>();
+		// alerts in the flush that is being delivered
+		List<Missed> flushing;
+		long retryMillis = initialRetryMillis;
+		ScheduledFuture<?> retry;
+		
+		Backlog(String key) {
+			this.key = key;
+		}
+		
+		public void run() {
+			log.debug("retrying missed alerts for " + key);
+			flush(this);
+		}
+	}
+	
+	public MissedAlertQueue(ScheduledExecutorService timer, Redelivery redelivery) {
+		this.timer = timer;
+		this.redelivery = redelivery;
+	}
+	
+	/**
+	 * Adds an alert that could not be delivered.  Alerts that were already merged are split so they can be merged again with newer alerts.
+	 * Digests are kept whole so their alerts stay silent
+	 */
+	public void add(Alert alert) {
+		List<Alert> alerts = new ArrayList<Alert>();
+		
+		if (alert instanceof MergedAlert && !((MergedAlert) alert).isDigest()) {
+			alerts.addAll(((MergedAlert) alert).getAlerts());
+		} else {
+			alerts.add(alert);
+		}
+		
+		List<Alert> dropped = new ArrayList<Alert>();
+		
+		synchronized (this) {
+			Backlog backlog = this.getBacklog(alert.getRemoteXBeeAddress());
+			
+			long now = System.nanoTime();
+			
+			for (Alert missed : alerts) {
+				backlog.alerts.addLast(new Missed(missed, now));
+			}
+			
+			this.trim(backlog, dropped);
+			this.scheduleRetry(backlog);
+			
+			log.info("Alert added to missed queue for " + backlog.key + ", backlog size is " + backlog.alerts.size());
+		}
+		
+		this.giveUp(dropped, "Alert dropped from missed queue since it is full");
+	}
+	
+	/**
+	 * Flushes the backlog for the remote, if any, since it is reachable
+	 */
+	public void remoteReachable(XBeeAddress64 address) {
+		Backlog backlog;
+		
+		synchronized (this) {
+			backlog = backlogs.get(address.toString());
+			
+			if (backlog == null || backlog.flushing != null) {
+				return;
+			}
+			
+			backlog.retryMillis = initialRetryMillis;
+			
+			if (backlog.retry != null) {
+				backlog.retry.cancel(false);
+				backlog.retry = null;
+			}
+		}
+		
+		log.info("Remote " + address + " is reachable.  Flushing missed alerts");
+		this.flush(backlog);
+	}
+	
+	/**
+	 * Flushes the backlog for the remote now, e.g. to probe whether it is back, without resetting the backoff
+	 */
+	public void retry(XBeeAddress64 address) {
+		Backlog backlog;
+		
+		synchronized (this) {
+			backlog = backlogs.get(address.toString());
+			
+			if (backlog == null || backlog.flushing != null) {
+				return;
+			}
+			
+			if (backlog.retry != null) {
+				backlog.retry.cancel(false);
+				backlog.retry = null;
+			}
+		}
+		
+		this.flush(backlog);
+	}
+	
+	/**
+	 * A flush was delivered
+	 */
+	public void delivered(XBeeAddress64 address) {
+		Backlog backlog;
+		
+		synchronized (this) {
+			backlog = backlogs.get(address.toString());
+			
+			if (backlog == null) {
+				return;
+			}
+			
+			redeliveries += backlog.flushing != null ? backlog.flushing.size() : 0;
+			backlog.flushing = null;
+			backlog.retryMillis = initialRetryMillis;
+			
+			if (backlog.alerts.isEmpty()) {
+				backlogs.remove(backlog.key);
+				return;
+			}
+		}
+		
+		// alerts were missed while flushing and the remote is up
+		this.flush(backlog);
+	}
+	
+	/**
+	 * A flush was taken over by someone else (e.g. held for quiet hours) and is no longer ours to deliver.
+	 * It is not counted as redelivered and the backoff is kept.  Alerts missed meanwhile wait for their retry
+	 */
+	public void handedOff(XBeeAddress64 address) {
+		synchronized (this) {
+			Backlog backlog = backlogs.get(address.toString());
+			
+			if (backlog == null || backlog.flushing == null) {
+				return;
+			}
+			
+			backlog.flushing = null;
+			
+			if (backlog.alerts.isEmpty()) {
+				backlogs.remove(backlog.key);
+			} else {
+				this.scheduleRetry(backlog);
+			}
+		}
+	}
+	
+	/**
+	 * A flush failed.  The alerts go back in the backlog and are retried after the backoff
+	 */
+	public void failed(XBeeAddress64 address) {
+		List<Alert> dropped = new ArrayList<Alert>();
+		
+		synchronized (this) {
+			Backlog backlog = backlogs.get(address.toString());
+			
+			if (backlog == null || backlog.flushing == null) {
+				return;
+			}
+			
+			// put back in front, in the original order
+			backlog.alerts.addAll(0, backlog.flushing);
+			backlog.flushing = null;
+			
+			backlog.retryMillis = Math.min(backlog.retryMillis * 2, maxRetryMillis);
+			
+			this.trim(backlog, dropped);
+			this.scheduleRetry(backlog);
+			
+			log.info("Missed alerts for " + backlog.key + " could not be delivered.  Will retry in " + backlog.retryMillis + "ms");
+		}
+		
+		this.giveUp(dropped, "Alert dropped from missed queue since it is full");
+	}
+	
+	private void flush(Backlog backlog) {
+		Alert merged;
+		List<Alert> expired = new ArrayList<Alert>();
+		
+		synchronized (this) {
+			backlog.retry = null;
+			
+			if (backlog.flushing != null) {
+				return;
+			}
+			
+			long now = System.nanoTime();
+			
+			for (Iterator<Missed> i = backlog.alerts.iterator(); i.hasNext();) {
+				Missed missed = i.next();
+				
+				if (TimeUnit.NANOSECONDS.toMillis(now - missed.missedTime) > maxAgeMillis) {
+					expired.add(missed.alert);
+					i.remove();
+				}
+			}
+			
+			if (backlog.alerts.isEmpty()) {
+				backlogs.remove(backlog.key);
+				merged = null;
+			} else {
+				backlog.flushing = new ArrayList<Missed>(backlog.alerts);
+				backlog.alerts.clear();
+				
+				List<Alert> alerts = new ArrayList<Alert>();
+				
+				for (Missed missed : backlog.flushing) {
+					alerts.add(missed.alert);
+				}
+				
+				merged = MergedAlert.merge(alerts);
+			}
+		}
+		
+		this.giveUp(expired, "Alert expired in missed queue");
+		
+		if (merged != null) {
+			redelivery.redeliver(merged);
+		}
+	}
+	
+	/**
+	 * Must hold lock
+	 */
+	private void trim(Backlog backlog, List<Alert> dropped) {
+		while (backlog.alerts.size() > maxAlertsPerRemote) {
+			dropped.add(backlog.alerts.removeFirst().alert);
+		}
+	}
+	
+	/**
+	 * Must hold lock
+	 */
+	private void scheduleRetry(Backlog backlog) {
+		if (backlog.retry == null && backlog.flushing == null && !backlog.alerts.isEmpty()) {
+			backlog.retry = timer.schedule(backlog, backlog.retryMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	private void giveUp(List<Alert> alerts, String reason) {
+		for (Alert alert : alerts) {
+			synchronized (this) {
+				givenUp++;
+			}
+			
+			log.warn(reason + ": " + alert);
+			
+			try {
+				alert.handleError(new DeliveryException(reason));	
+			} catch (Exception e) {
+				log.warn("handleError failed for alert " + alert, e);
+			}
+		}
+	}
+	
+	private Backlog getBacklog(XBeeAddress64 address) {
+		String key = address.toString();
+		Backlog backlog = backlogs.get(key);
+		
+		if (backlog == null) {
+			backlog = new Backlog(key);
+			backlogs.put(key, backlog);
+		}
+		
+		return backlog;
+	}
+	
+	/**
+	 * Number of alerts waiting for all remotes
+	 */
+	public synchronized int size() {
+		int size = 0;
+		
+		for (Backlog backlog : backlogs.values()) {
+			size+= backlog.alerts.size() + (backlog.flushing != null ? backlog.flushing.size() : 0);
+		}
+		
+		return size;
+	}
+	
+	/**
+	 * Number of alerts delivered from the missed queue
+	 */
+	public synchronized long getRedeliveries() {
+		return redeliveries;
+	}
+	
+	/**
+	 * Number of alerts dropped because the backlog was full or the alert expired
+	 */
+	public synchronized long getGivenUp() {
+		return givenUp;
+	}
+
+	public synchronized int getMaxAlertsPerRemote() {
+		return maxAlertsPerRemote;
+	}
+
+	public synchronized void setMaxAlertsPerRemote(int maxAlertsPerRemote) {
+		if (maxAlertsPerRemote <= 0) {
+			throw new IllegalArgumentException("must be > 0");
+		}
+		
+		this.maxAlertsPerRemote = maxAlertsPerRemote;
+	}
+
+	public synchronized long getInitialRetryMillis() {
+		return initialRetryMillis;
+	}
+
+	public synchronized void setInitialRetryMillis(long initialRetryMillis) {
+		if (initialRetryMillis <= 0) {
+			throw new IllegalArgumentException("must be > 0");
+		}
+		
+		this.initialRetryMillis = initialRetryMillis;
+	}
+
+	public synchronized long getMaxRetryMillis() {
+		return maxRetryMillis;
+	}
+
+	public synchronized void setMaxRetryMillis(long maxRetryMillis) {
+		if (maxRetryMillis <= 0) {
+			throw new IllegalArgumentException("must be > 0");
+		}
+		
+		this.maxRetryMillis = maxRetryMillis;
+	}
+
+	public synchronized long getMaxAgeMillis() {
+		return maxAgeMillis;
+	}
+
+	public synchronized void setMaxAgeMillis(long maxAgeMillis) {
+		this.maxAgeMillis = maxAgeMillis;
+	}
+}
@@ -0,0 +1,186 @@
+/**
+ * Copyright (c) 2009 Andrew Rapp. All rights reserved.
+ *  
+ * This file is part of Droplet.
+ *  
+ * Droplet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * Droplet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License
+ * along with Droplet.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.droplet.framework.internal;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.rapplogic.droplet.framework.DeliveryException;
+import com.rapplogic.droplet.framework.QuietHours;
+import com.rapplogic.droplet.framework.service.Alert;
+
+/**
+ * Holds non-emergency alerts during quiet hours, per remote, and releases each remote's alerts as one 
+ * merged multi-page digest when the quiet hours end.  The digest does not sound the alarm.  Emergency alerts are never held.
+ * 
+ * @author andrew
+ *
+ */
+public class QuietHoursGate {
+
+	private final static Logger log = Logger.getLogger(QuietHoursGate.class);
+	
+	/**
+	 * Sends a digest
+	 */
+	public interface Release {
+		public void release(Alert digest);
+	}
+	
+	private final ScheduledExecutorService timer;
+	private final Release release;
+	
+	private QuietHours quietHours;
+	
+	// held alerts by remote address, in the order they arrived
+	private final LinkedHashMap<String, List<Alert>> held = new LinkedHashMap<String, List<Alert>>();
+	private int heldCount;
+	private ScheduledFuture<?> flush;
+	
+	public QuietHoursGate(ScheduledExecutorService timer, Release release) {
+		this.timer = timer;
+		this.release = release;
+	}
+	
+	/**
+	 * Holds the alert if it is quiet hours and the alert is not an emergency.  The alert must be for a single remote
+	 * 
+	 * @return true if the alert was held
+	 */
+	public boolean hold(Alert alert) {
+		long now = System.currentTimeMillis();
+		
+		synchronized (this) {
+			if (quietHours == null || alert.isEmergency() || !quietHours.isQuiet(now)) {
+				return false;
+			}
+			
+			String key = alert.getRemoteXBeeAddress().toString();
+			List<Alert> alerts = held.get(key);
+			
+			if (alerts == null) {
+				alerts = new ArrayList<Alert>();
+				held.put(key, alerts);
+			}
+			
+			alerts.add(alert);
+			heldCount++;
+			
+			if (flush == null) {
+				long delay = quietHours.getEndTime(now) - now;
+				
+				flush = timer.schedule(new Runnable() {
+					public void run() {
+						flush();
+					}
+				}, delay, TimeUnit.MILLISECONDS);
+				
+				log.info("Quiet hours " + quietHours + ".. holding alerts for " + delay / 1000 + "s");
+			}
+		}
+		
+		log.info("Holding alert until quiet hours end: " + alert);
+		return true;
+	}
+	
+	/**
+	 * Releases all held alerts now, one digest per remote
+	 */
+	public void flush() {
+		List<List<Alert>> remotes;
+		
+		synchronized (this) {
+			if (flush != null) {
+				flush.cancel(false);
+				flush = null;
+			}
+			
+			remotes = new ArrayList<List<Alert>>(held.values());
+			held.clear();
+			heldCount = 0;
+		}
+		
+		for (List<Alert> alerts : remotes) {
+			log.info("Quiet hours are over.  Sending digest of " + alerts.size() + " alerts to " + alerts.get(0).getRemoteXBeeAddress());
+			release.release(MergedAlert.digest(alerts));
+		}
+	}
+	
+	/**
+	 * Drops all held alerts, calling handleError on each, e.g. on shutdown
+	 */
+	public void discard(String reason) {
+		List<Alert> dropped = new ArrayList<Alert>();
+		
+		synchronized (this) {
+			if (flush != null) {
+				flush.cancel(false);
+				flush = null;
+			}
+			
+			for (List<Alert> alerts : held.values()) {
+				dropped.addAll(alerts);
+			}
+			
+			held.clear();
+			heldCount = 0;
+		}
+		
+		for (Alert alert : dropped) {
+			log.warn(reason + ": " + alert);
+			
+			try {
+				alert.handleError(new DeliveryException(reason));	
+			} catch (Exception e) {
+				log.warn("handleError failed for alert " + alert, e);
+			}
+		}
+	}
+	
+	/**
+	 * Sets the quiet hours, or null to disable.  Alerts that are held are released if quiet hours are disabled
+	 */
+	public void setQuietHours(QuietHours quietHours) {
+		synchronized (this) {
+			this.quietHours = quietHours;
+		}
+		
+		if (quietHours == null) {
+			this.flush();
+		}
+	}
+	
+	public synchronized QuietHours getQuietHours() {
+		return quietHours;
+	}
+	
+	/**
+	 * Number of alerts held for all remotes
+	 */
+	public synchronized int getHeldCount() {
+		return heldCount;
+	}
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright (c) 2009 Andrew Rapp. All rights reserved.
+ *  
+ * This file is part of Droplet.
+ *  
+ * Droplet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * Droplet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License
+ * along with Droplet.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.droplet.framework.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.rapplogic.droplet.framework.DeliveryException;
+import com.rapplogic.droplet.framework.service.Alert;
+import com.rapplogic.droplet.framework.text.Content;
+import com.rapplogic.xbee.api.XBeeAddress64;
+
+/**
+ * The copy of a multi-remote alert that is delivered to one remote.  Shares the pages of the original 
+ * alert's content (formatted once) but has its own current page.  Delivery errors are reported to the original alert.
+ * 
+ * @author andrew
+ *
+ */
+public class RemoteAlert extends Alert {
+
+	private final Alert alert;
+	
+	private RemoteAlert(Alert alert, XBeeAddress64 remoteXBeeAddress) {
+		this.alert = alert;
+		
+		this.setRemoteXBeeAddress(remoteXBeeAddress);
+		this.setContent(new Content(alert.getContent()));
+		this.setFlashLed(alert.isFlashLed());
+		this.setSoundAlarm(alert.isSoundAlarm());
+		this.setPriority(alert.getPriority());
+		this.setCoalesce(alert.isCoalesce());
+		this.setStoreInHistory(alert.isStoreInHistory());
+	}
+	
+	/**
+	 * Returns one alert per remote of the alert, or the alert itself if it has only one remote
+	 * 
+	 * @param alert
+	 * @return
+	 */
+	public static List<Alert> fanOut(Alert alert) {
+		List<XBeeAddress64> addresses = alert.getRemoteXBeeAddresses();
+		List<Alert> alerts = new ArrayList<Alert>();
+		
+		if (addresses.size() <= 1) {
+			alerts.add(alert);
+			return alerts;
+		}
+		
+		for (XBeeAddress64 address : addresses) {
+			alerts.add(new RemoteAlert(alert, address));
+		}
+		
+		return alerts;
+	}
+	
+	/**
+	 * The multi-remote alert this was copied from
+	 */
+	public Alert getAlert() {
+		return alert;
+	}
+	
+	@Override
+	public void handleError(DeliveryException e) {
+		alert.handleError(new DeliveryException("Delivery to " + this.getRemoteXBeeAddress() + " failed", e));
+	}
+}
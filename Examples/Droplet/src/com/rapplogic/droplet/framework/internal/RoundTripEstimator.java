@@ -0,0 +1,150 @@
+/**
+ * Copyright (c) 2009 Andrew Rapp. All rights reserved.
+ *  
+ * This file is part of Droplet.
+ *  
+ * Droplet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * Droplet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License
+ * along with Droplet.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.rapplogic.droplet.framework.internal;
+
+import java.util.HashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Estimates the send timeout of each remote from the time between a TX request and its TX Status Response,
+ * the way TCP computes its retransmission timeout (RFC 6298): timeout = srtt + 4 * rttvar, 
+ * bounded by minTimeoutMillis and maxTimeoutMillis.  A remote with no samples gets maxTimeoutMillis.
+ * <p/>
+ * After a timeout the remote's timeout doubles until the next sample.  Following Karn's rule, only 
+ * unambiguous round trips are sampled: the transmitter quarantines the frame id of a request that timed out, 
+ * so a late status is still matched to its own request, and requests sent in fragments are not sampled.
+ * 
+ * @author andrew
+ *
+ */
+public class RoundTripEstimator {
+
+	private final static Logger log = Logger.getLogger(RoundTripEstimator.class);
+	
+	// keyed by address string since XBeeAddress64 does not implement hashCode
+	private final HashMap<String, Estimate> estimates = new HashMap<String, Estimate>();
+	
+	private long minTimeoutMillis = 3000;
+	private long maxTimeoutMillis = 10000;
+	
+	private static class Estimate {
+		// milliseconds
+		double srtt;
+		double rttvar;
+		int backoff = 1;
+	}
+	
+	/**
+	 * Updates the remote's estimate with a measured round trip
+	 */
+	public synchronized void sample(String remote, long rttMillis) {
+		Estimate estimate = estimates.get(remote);
+		
+		if (estimate == null) {
+			estimate = new Estimate();
+			estimate.srtt = rttMillis;
+			estimate.rttvar = rttMillis / 2.0;
+			estimates.put(remote, estimate);
+		} else {
+			estimate.rttvar = 0.75 * estimate.rttvar + 0.25 * Math.abs(estimate.srtt - rttMillis);
+			estimate.srtt = 0.875 * estimate.srtt + 0.125 * rttMillis;
+		}
+		
+		estimate.backoff = 1;
+		
+		if (log.isDebugEnabled()) {
+			log.debug("rtt to " + remote + " is " + rttMillis + "ms, srtt " + (long) estimate.srtt + "ms, timeout " + this.getTimeout(remote) + "ms");
+		}
+	}
+	
+	/**
+	 * Backs off the remote's timeout after a request timed out
+	 */
+	public synchronized void timedOut(String remote) {
+		Estimate estimate = estimates.get(remote);
+		
+		if (estimate != null && this.getTimeout(remote) < maxTimeoutMillis) {
+			estimate.backoff *= 2;
+		}
+	}
+	
+	/**
+	 * Milliseconds to wait for the TX Status Response of a request to the remote
+	 */
+	public synchronized long getTimeout(String remote) {
+		Estimate estimate = estimates.get(remote);
+		
+		if (estimate == null) {
+			return maxTimeoutMillis;
+		}
+		
+		long timeout = (long) Math.ceil(estimate.srtt + 4 * estimate.rttvar) * estimate.backoff;
+		return Math.min(Math.max(timeout, minTimeoutMillis), maxTimeoutMillis);
+	}
+	
+	/**
+	 * Smoothed round trip time of the remote in milliseconds, or -1 if there are no samples
+	 */
+	public synchronized long getSmoothedRtt(String remote) {
+		Estimate estimate = estimates.get(remote);
+		return estimate == null ? -1 : (long) estimate.srtt;
+	}
+	
+	/**
+	 * Forgets the estimate of a remote, e.g. because it moved
+	 */
+	public synchronized void reset(String remote) {
+		estimates.remove(remote);
+	}
+	
+	public synchronized long getMinTimeoutMillis() {
+		return minTimeoutMillis;
+	}
+
+	/**
+	 * Lower bound of the timeout, so a burst of fast ACKs does not make it too tight.  A delivery that needs a route 
+	 * discovery or MAC retries can take seconds, and one that times out is sent again (e.g. from the missed alert queue), 
+	 * so a low bound causes duplicates.  Default is 3000
+	 */
+	public synchronized void setMinTimeoutMillis(long minTimeoutMillis) {
+		if (minTimeoutMillis <= 0) {
+			throw new IllegalArgumentException("must be > 0");
+		}
+		
+		this.minTimeoutMillis = minTimeoutMillis;
+	}
+
+	public synchronized long getMaxTimeoutMillis() {
+		return maxTimeoutMillis;
+	}
+
+	/**
+	 * Upper bound of the timeout and the timeout of remotes with no samples.  Default is 10000
+	 */
+	public synchronized void setMaxTimeoutMillis(long maxTimeoutMillis) {
+		if (maxTimeoutMillis <= 0) {
+			throw new IllegalArgumentException("must be > 0");
+		}
+		
+		this.maxTimeoutMillis = maxTimeoutMillis;
+	}
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright (c) 2009 Andrew Rapp. All rights reserved.
+ *  
+ * This file is part of Droplet.
+ *  
+ * Droplet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * Droplet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License
+ * along with Droplet.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.droplet.framework.internal;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * What each remote's screen buffer holds: the last page Droplet sent to it, laid out as the LCD shows it.
+ * Used to send only the characters that changed (a delta) instead of the whole page.
+ * <p/>
+ * A delta is [base checksum high][base checksum low] followed by runs of [position][length][chars], so only screens
+ * of up to 255 chars get deltas.  
+ * The checksum (Fletcher-16) is of the screen the delta applies to; if the remote's screen doesn't match it 
+ * asks for the full page (resync).  Frames are assumed to arrive in order; a frame that fails invalidates the shadow.
+ * 
+ * @author andrew
+ *
+ */
+public class ScreenShadow {
+
+	// an unchanged gap shorter than this is sent as part of the run rather than starting a new run (2 byte header)
+	private final static int MIN_GAP = 3;
+	
+	// run positions and lengths are one byte each, so larger screens are always sent in full
+	public final static int MAX_DELTA_SCREEN_SIZE = 255;
+	
+	private final int numLines;
+	private final int lineSize;
+	
+	private final ConcurrentHashMap<String, char[]> screens = new ConcurrentHashMap<String, char[]>();
+	
+	public ScreenShadow(int numLines, int lineSize) {
+		this.numLines = numLines;
+		this.lineSize = lineSize;
+	}
+	
+	/**
+	 * Lays out the text as the LCD4x20 library prints it: LF pads to the end of the line and the rest is blank
+	 */
+	public char[] render(String text) {
+		char[] screen = new char[numLines * lineSize];
+		Arrays.fill(screen, ' ');
+		
+		int pos = 0;
+		
+		for (int i = 0; i < text.length() && pos < screen.length; i++) {
+			char c = text.charAt(i);
+			
+			if (c == '\n') {
+				// the LCD pads a full line too, if the cursor has wrapped to the start of the next line
+				pos = (pos / lineSize + 1) * lineSize;
+			} else {
+				screen[pos++] = (char) (c & 0xff);
+			}
+		}
+		
+		return screen;
+	}
+	
+	/**
+	 * Returns the delta from the remote's shadow to the screen, or null if there is no shadow, the delta
+	 * is not smaller than maxLength or the screen is larger than MAX_DELTA_SCREEN_SIZE chars
+	 */
+	public int[] createDelta(String remote, char[] screen, int maxLength) {
+		char[] base = screens.get(remote);
+		
+		if (base == null || base.length != screen.length || screen.length > MAX_DELTA_SCREEN_SIZE || maxLength <= 2) {
+			return null;
+		}
+		
+		int[] delta = new int[maxLength];
+		int checksum = checksum(base);
+		
+		delta[0] = (checksum >> 8) & 0xff;
+		delta[1] = checksum & 0xff;
+		
+		int length = 2;
+		int i = 0;
+		
+		while (i < screen.length) {
+			if (screen[i] == base[i]) {
+				i++;
+				continue;
+			}
+			
+			// extend the run over changes and short gaps
+			int start = i;
+			int end = i + 1;
+			
+			for (int j = end; j < screen.length && j - end < MIN_GAP; j++) {
+				if (screen[j] != base[j]) {
+					end = j + 1;
+				}
+			}
+			
+			int runLength = end - start;
+			
+			if (length + 2 + runLength >= maxLength) {
+				return null;
+			}
+			
+			delta[length++] = start;
+			delta[length++] = runLength;
+			
+			for (int j = start; j < end; j++) {
+				delta[length++] = screen[j];
+			}
+			
+			i = end;
+		}
+		
+		int[] result = new int[length];
+		System.arraycopy(delta, 0, result, 0, length);
+		return result;
+	}
+	
+	/**
+	 * The remote's screen after the frame that was just built
+	 */
+	public void update(String remote, char[] screen) {
+		screens.put(remote, screen);
+	}
+	
+	/**
+	 * The remote's screen is unknown (e.g. delivery failed or the remote asked to resync).  The next page is sent in full
+	 */
+	public void invalidate(String remote) {
+		screens.remove(remote);
+	}
+	
+	/**
+	 * Fletcher-16, as computed by the remote
+	 */
+	public static int checksum(char[] screen) {
+		int sum1 = 0;
+		int sum2 = 0;
+		
+		for (char c : screen) {
+			sum1 = (sum1 + (c & 0xff)) % 255;
+			sum2 = (sum2 + sum1) % 255;
+		}
+		
+		return (sum2 << 8) | sum1;
+	}
+}
@@ -0,0 +1,166 @@
+/**
+ * Copyright (c) 2009 Andrew Rapp. All rights reserved.
+ *  
+ * This file is part of Droplet.
+ *  
+ * Droplet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * Droplet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License
+ * along with Droplet.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.droplet.framework.internal;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs the executions of one push service on their own thread with a deadline, so a service that hangs (e.g. on 
+ * an HTTP call with no timeout) cannot hold the threads the other services need.
+ * <p/>
+ * The caller serializes executions (AdaptiveSchedule starts the next one after the previous one returns), 
+ * so every execution is run.  When an execution passes its deadline its thread is interrupted and it is counted as stuck 
+ * until it returns; the service is not run again until then.  Blocking socket reads can't be interrupted, so a stuck execution may never return, but it only 
+ * stops this service.
+ * 
+ * @author andrew
+ *
+ */
+public class ServiceBulkhead implements Executor {
+	
+	private final static Logger log = Logger.getLogger(ServiceBulkhead.class);
+	
+	/**
+	 * Reports executions, e.g. to metrics
+	 */
+	public interface Listener {
+		public void executed(long nanos);
+		/** execution passed its deadline and was interrupted */
+		public void timedOut();
+		/** an execution that timed out has returned */
+		public void recovered();
+	}
+	
+	private final String name;
+	private final Executor threads;
+	private final ScheduledExecutorService timer;
+	private final long timeoutMillis;
+	private final Listener listener;
+	
+	private final AtomicInteger running = new AtomicInteger();
+	
+	/**
+	 * @param name service name, for logging
+	 * @param threads creates a thread (platform or virtual) for each execution
+	 * @param timer runs the deadline
+	 * @param timeoutMillis deadline of each execution.  0 for no deadline
+	 */
+	public ServiceBulkhead(String name, Executor threads, ScheduledExecutorService timer, long timeoutMillis, Listener listener) {
+		if (timeoutMillis < 0) {
+			throw new IllegalArgumentException("must be >= 0");
+		}
+		
+		this.name = name;
+		this.threads = threads;
+		this.timer = timer;
+		this.timeoutMillis = timeoutMillis;
+		this.listener = listener;
+	}
+	
+	/**
+	 * Runs the execution on its own thread
+	 */
+	public void execute(final Runnable execution) {
+		running.incrementAndGet();
+		
+		try {
+			threads.execute(new Runnable() {
+				public void run() {
+					runWithDeadline(execution);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			running.decrementAndGet();
+			throw e;
+		}
+	}
+	
+	private void runWithDeadline(Runnable execution) {
+		final Thread thread = Thread.currentThread();
+		final AtomicBoolean finished = new AtomicBoolean();
+		final AtomicBoolean timedOut = new AtomicBoolean();
+		
+		ScheduledFuture<?> deadline = null;
+		
+		if (timeoutMillis > 0) {
+			deadline = timer.schedule(new Runnable() {
+				public void run() {
+					// don't interrupt the thread if it has moved on
+					synchronized (finished) {
+						if (finished.get()) {
+							return;
+						}
+						
+						// report before interrupting so it's counted as stuck before it recovers
+						timedOut.set(true);
+						listener.timedOut();
+						thread.interrupt();
+					}
+					
+					log.error("Push service " + name + " has not finished after " + timeoutMillis + "ms.. interrupted");
+				}
+			}, timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+		
+		long start = System.nanoTime();
+		
+		try {
+			execution.run();
+		} finally {
+			synchronized (finished) {
+				finished.set(true);
+				// clear an interrupt that arrived after the execution returned
+				Thread.interrupted();
+			}
+			
+			if (deadline != null) {
+				deadline.cancel(false);
+			}
+			
+			listener.executed(System.nanoTime() - start);
+			
+			if (timedOut.get()) {
+				log.info("Push service " + name + " returned " + (System.nanoTime() - start) / 1000000 + "ms after it started");
+				listener.recovered();
+			}
+			
+			running.decrementAndGet();
+		}
+	}
+	
+	/**
+	 * True if an execution is running
+	 */
+	public boolean isRunning() {
+		return running.get() > 0;
+	}
+	
+	public long getTimeoutMillis() {
+		return timeoutMillis;
+	}
+}
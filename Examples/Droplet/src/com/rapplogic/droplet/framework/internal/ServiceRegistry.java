@@ -0,0 +1,186 @@
+/**
+ * Copyright (c) 2009 Andrew Rapp. All rights reserved.
+ *  
+ * This file is part of Droplet.
+ *  
+ * Droplet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * Droplet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License
+ * along with Droplet.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.droplet.framework.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+
+import com.rapplogic.droplet.framework.service.PullService;
+import com.rapplogic.droplet.framework.service.PushService;
+
+/**
+ * Registered pull and push services.  Lookups don't lock, so the RX thread can dispatch while 
+ * services are registered, replaced or removed.  Each change is a single atomic map operation: a request 
+ * sees either the old service or the new one, and executions already running on the old service finish normally.
+ * 
+ * @author andrew
+ *
+ */
+public class ServiceRegistry {
+
+	/**
+	 * A registered push service and what is needed to stop it
+	 */
+	public static class PushRegistration {
+		private final PushService service;
+		private final AdaptiveSchedule schedule;
+		private final Future<?> future;
+		
+		/**
+		 * @param schedule for recurring services, else null
+		 * @param future for one time and runnable services, else null
+		 */
+		public PushRegistration(PushService service, AdaptiveSchedule schedule, Future<?> future) {
+			this.service = service;
+			this.schedule = schedule;
+			this.future = future;
+		}
+		
+		public PushService getService() {
+			return service;
+		}
+		
+		/**
+		 * Stops future executions.  RunnablePushServices are interrupted, as they never return on their own
+		 */
+		void cancel() {
+			if (schedule != null) {
+				schedule.cancel();
+			}
+			
+			if (future != null) {
+				future.cancel(true);
+			}
+		}
+	}
+	
+	private final ConcurrentMap<Integer, PullService> pullServices = new ConcurrentHashMap<Integer, PullService>();
+	
+	// by the runnable returned from registerPushService
+	private final ConcurrentMap<Runnable, PushRegistration> pushServices = new ConcurrentHashMap<Runnable, PushRegistration>();
+	
+	public PullService getPullService(Integer serviceId) {
+		return pullServices.get(serviceId);
+	}
+	
+	/**
+	 * @throws IllegalArgumentException if a service is registered with the id
+	 */
+	public void registerPullService(Integer serviceId, PullService service) {
+		if (service == null) {
+			throw new IllegalArgumentException("service is null");
+		}
+		
+		if (pullServices.putIfAbsent(serviceId, service) != null) {
+			throw new IllegalArgumentException("Service already exists for id " + serviceId + ".  Use unregisterService or replacePullService");
+		}
+	}
+	
+	/**
+	 * Swaps the service registered with the id for this one, or registers it if there is none
+	 * 
+	 * @return the service that was replaced, or null
+	 */
+	public PullService replacePullService(Integer serviceId, PullService service) {
+		if (service == null) {
+			throw new IllegalArgumentException("service is null");
+		}
+		
+		return pullServices.put(serviceId, service);
+	}
+	
+	/**
+	 * @throws IllegalArgumentException if no service is registered with the id
+	 */
+	public PullService unRegisterPullService(Integer serviceId) {
+		PullService removed = pullServices.remove(serviceId);
+		
+		if (removed == null) {
+			throw new IllegalArgumentException("Service does not exist for id " + serviceId);
+		}
+		
+		return removed;
+	}
+	
+	public void addPushService(Runnable runnable, PushRegistration registration) {
+		pushServices.put(runnable, registration);
+	}
+	
+	/**
+	 * Removes and stops the push service
+	 * 
+	 * @return false if it is not registered
+	 */
+	public boolean removePushService(Runnable runnable) {
+		PushRegistration registration = pushServices.remove(runnable);
+		
+		if (registration == null) {
+			return false;
+		}
+		
+		registration.cancel();
+		return true;
+	}
+	
+	/**
+	 * Swaps the push service registered as old for the new registration, which must already be started, and stops the old service. 
+	 * If old is no longer registered (e.g. it was removed concurrently), the new registration is stopped instead
+	 * 
+	 * @return false if old was not registered
+	 */
+	public boolean replacePushService(Runnable old, Runnable runnable, PushRegistration registration) {
+		PushRegistration previous = pushServices.remove(old);
+		
+		if (previous == null) {
+			registration.cancel();
+			return false;
+		}
+		
+		pushServices.put(runnable, registration);
+		previous.cancel();
+		return true;
+	}
+	
+	public PushService getPushService(Runnable runnable) {
+		PushRegistration registration = pushServices.get(runnable);
+		return registration == null ? null : registration.getService();
+	}
+	
+	/**
+	 * Pull service ids, in no order
+	 */
+	public List<Integer> getPullServiceIds() {
+		return new ArrayList<Integer>(pullServices.keySet());
+	}
+	
+	public List<PushService> getPushServices() {
+		List<PushService> services = new ArrayList<PushService>();
+		
+		for (Map.Entry<Runnable, PushRegistration> entry : pushServices.entrySet()) {
+			services.add(entry.getValue().getService());
+		}
+		
+		return services;
+	}
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright (c) 2009 Andrew Rapp. All rights reserved.
+ *  
+ * This file is part of Droplet.
+ *  
+ * Droplet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * Droplet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License
+ * along with Droplet.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.droplet.framework.internal;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Creates executors that start a new thread per task, using virtual threads when the JVM supports them.
+ * Virtual threads are created by reflection so Droplet still compiles and runs on older JVMs.
+ * 
+ * @author andrew
+ *
+ */
+public class ServiceThreads {
+
+	private final static Logger log = Logger.getLogger(ServiceThreads.class);
+	
+	private ServiceThreads() {
+		
+	}
+	
+	/**
+	 * @return true if this JVM supports virtual threads
+	 */
+	public static boolean isVirtualThreadSupported() {
+		try {
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Returns an executor that runs each task on a new virtual thread, or if virtual threads are not supported,
+	 * a cached pool of daemon platform threads named after name
+	 * 
+	 * @param name
+	 * @return
+	 */
+	public static ExecutorService newVirtualThreadPerTaskExecutor(String name) {
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		} catch (NoSuchMethodException e) {
+			log.warn("Virtual threads are not supported by this JVM.  Using a cached thread pool for " + name);
+		} catch (Exception e) {
+			log.warn("Unable to create virtual thread executor.  Using a cached thread pool for " + name, e);
+		}
+		
+		return newThreadPerTaskExecutor(name);
+	}
+	
+	/**
+	 * Returns an executor that runs each task on its own daemon platform thread, reusing idle threads
+	 * 
+	 * @param name
+	 * @return
+	 */
+	public static ExecutorService newThreadPerTaskExecutor(final String name) {
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+}
@@ -19,12 +19,19 @@
 
 package com.rapplogic.droplet.framework.service;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import com.rapplogic.droplet.framework.DeliveryException;
 import com.rapplogic.droplet.framework.Message;
+import com.rapplogic.xbee.api.XBeeAddress64;
 
 /**
  * Describes a <code>Message</code> sent by a Push Service to a remote XBee.
  * It specifies if the flashLed or soundAlarm actions should occur
+ * <p/>
+ * An alert may be sent to more than one remote (see addRemoteXBeeAddress).  The content is formatted once
+ * and its pages are shared by all remotes; each remote gets its own current page.
  * 
  * @author andrew
  *
@@ -33,6 +40,20 @@ public class Alert extends Message {
 
 	private boolean flashLed = true;
 	private boolean soundAlarm = false;
+	private Priority priority = Priority.DEFAULT;
+	private boolean coalesce = true;
+	// remotes in addition to remoteXBeeAddress
+	private final List<XBeeAddress64> additionalRemoteXBeeAddresses = new ArrayList<XBeeAddress64>();
+	
+	/**
+	 * EMERGENCY alerts skip ahead of queued DEFAULT alerts (e.g. severe weather)
+	 * 
+	 * @author andrew
+	 *
+	 */
+	public enum Priority {
+		DEFAULT, EMERGENCY
+	}
 	
 	public boolean isFlashLed() {
 		return flashLed;
@@ -49,6 +70,71 @@ public class Alert extends Message {
 		this.soundAlarm = soundAlarm;
 	}
 	
+	public Priority getPriority() {
+		return priority;
+	}
+	
+	public void setPriority(Priority priority) {
+		this.priority = priority;
+	}
+	
+	public boolean isEmergency() {
+		return priority == Priority.EMERGENCY;
+	}
+	
+	/**
+	 * If true (default), the alert may be combined with other alerts for the same remote that arrive
+	 * within the coalescing window (see Droplet.setAlertCoalescingWindowMillis)
+	 */
+	public boolean isCoalesce() {
+		return coalesce;
+	}
+
+	public void setCoalesce(boolean coalesce) {
+		this.coalesce = coalesce;
+	}
+	
+	/**
+	 * Adds a remote that should receive this alert.  The first address becomes the remoteXBeeAddress
+	 * 
+	 * @param remoteXBeeAddress
+	 */
+	public void addRemoteXBeeAddress(XBeeAddress64 remoteXBeeAddress) {
+		if (this.getRemoteXBeeAddress() == null) {
+			this.setRemoteXBeeAddress(remoteXBeeAddress);
+		} else if (!this.getRemoteXBeeAddresses().contains(remoteXBeeAddress)) {
+			additionalRemoteXBeeAddresses.add(remoteXBeeAddress);
+		}
+	}
+	
+	/**
+	 * Replaces all remotes of this alert
+	 * 
+	 * @param remoteXBeeAddresses
+	 */
+	public void setRemoteXBeeAddresses(List<XBeeAddress64> remoteXBeeAddresses) {
+		this.setRemoteXBeeAddress(null);
+		additionalRemoteXBeeAddresses.clear();
+		
+		for (XBeeAddress64 address : remoteXBeeAddresses) {
+			this.addRemoteXBeeAddress(address);
+		}
+	}
+	
+	/**
+	 * All remotes that should receive this alert, starting with remoteXBeeAddress
+	 */
+	public List<XBeeAddress64> getRemoteXBeeAddresses() {
+		List<XBeeAddress64> addresses = new ArrayList<XBeeAddress64>();
+		
+		if (this.getRemoteXBeeAddress() != null) {
+			addresses.add(this.getRemoteXBeeAddress());
+		}
+		
+		addresses.addAll(additionalRemoteXBeeAddresses);
+		return addresses;
+	}
+	
 	/**
 	 * The framework calls method if delivery of the alert fails
 	 * 
@@ -59,6 +145,6 @@ public class Alert extends Message {
 	}
 	
 	public String toString() {
-		return super.toString() + ",flashLed=" + this.flashLed + ",alarm=" + this.soundAlarm;
+		return super.toString() + (additionalRemoteXBeeAddresses.isEmpty() ? "" : ",additionalAddresses=" + additionalRemoteXBeeAddresses) + ",flashLed=" + this.flashLed + ",alarm=" + this.soundAlarm + ",priority=" + this.priority;
 	}
 }
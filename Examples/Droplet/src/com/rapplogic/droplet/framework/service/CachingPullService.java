@@ -0,0 +1,260 @@
+/**
+ * Copyright (c) 2009 Andrew Rapp. All rights reserved.
+ *  
+ * This file is part of Droplet.
+ *  
+ * Droplet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * Droplet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License
+ * along with Droplet.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.droplet.framework.service;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.rapplogic.droplet.framework.ServiceContext;
+import com.rapplogic.droplet.framework.text.Content;
+import com.rapplogic.droplet.framework.text.IContent;
+import com.rapplogic.xbee.api.XBeeResponse;
+
+/**
+ * Decorates a PullService with a result cache, so that repeated button presses don't
+ * fetch and parse the same content (e.g. weather, news) again.
+ * <p/>
+ * The last content is kept per service id for ttlMillis.  After that the entry is stale: the stale content
+ * is returned immediately and the service is executed in the background to refresh the entry.
+ * Only one refresh runs per service id at a time.  Error messages are never cached.
+ * <p/>
+ * Each call returns a new Content that shares the cached pages, so that each remote has its own
+ * current page.
+ * <p/>
+ * Use ServiceContext.registerPullService(serviceId, service, ttlMillis) to register a cached service.  Services registered
+ * that way report hits, misses and refresh time to DropletMetrics.
+ * 
+ * @author andrew
+ *
+ */
+public class CachingPullService implements PullService {
+
+	private final static Logger log = Logger.getLogger(CachingPullService.class);
+	
+	/**
+	 * Reports cache activity, e.g. to metrics
+	 */
+	public interface Listener {
+		public void hit();
+		/** stale content was returned */
+		public void staleHit();
+		public void miss();
+		/** the service was executed, in the foreground or background */
+		public void refreshed(long nanos);
+	}
+	
+	private final PullService service;
+	private final long ttlMillis;
+	private final Executor refreshExecutor;
+	private final Listener listener;
+	
+	private final ConcurrentHashMap<Integer, Entry> cache = new ConcurrentHashMap<Integer, Entry>();
+	
+	// stats
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong staleHits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong refreshes = new AtomicLong();
+	private final AtomicLong refreshFailures = new AtomicLong();
+	private final AtomicLong refreshTimeNanos = new AtomicLong();
+	
+	private static class Entry {
+		final IContent content;
+		// System.nanoTime() when the content was loaded
+		final long loadTime;
+		final AtomicBoolean refreshing = new AtomicBoolean();
+		
+		Entry(IContent content, long loadTime) {
+			this.content = content;
+			this.loadTime = loadTime;
+		}
+	}
+	
+	/**
+	 * @param service the service to cache
+	 * @param ttlMillis how long content is fresh
+	 * @param refreshExecutor runs background refreshes of stale content
+	 */
+	public CachingPullService(PullService service, long ttlMillis, Executor refreshExecutor) {
+		this(service, ttlMillis, refreshExecutor, null);
+	}
+	
+	/**
+	 * @param service the service to cache
+	 * @param ttlMillis how long content is fresh
+	 * @param refreshExecutor runs background refreshes of stale content
+	 * @param listener notified of hits, misses and refreshes, or null
+	 */
+	public CachingPullService(PullService service, long ttlMillis, Executor refreshExecutor, Listener listener) {
+		if (ttlMillis <= 0) {
+			throw new IllegalArgumentException("ttl must be > 0");
+		}
+		
+		this.service = service;
+		this.ttlMillis = ttlMillis;
+		this.refreshExecutor = refreshExecutor;
+		this.listener = listener;
+	}
+	
+	public IContent execute(final Integer serviceId, final XBeeResponse response, final ServiceContext serviceContext) throws Exception {
+		
+		final Entry entry = cache.get(serviceId);
+		
+		if (entry == null) {
+			misses.incrementAndGet();
+			
+			if (listener != null) {
+				listener.miss();
+			}
+			
+			log.debug("cache miss for service id " + serviceId);
+			
+			return this.load(serviceId, response, serviceContext);
+		}
+		
+		if (System.nanoTime() - entry.loadTime < ttlMillis * 1000000L) {
+			hits.incrementAndGet();
+			
+			if (listener != null) {
+				listener.hit();
+			}
+			
+			return new Content(entry.content);
+		}
+		
+		staleHits.incrementAndGet();
+		
+		if (listener != null) {
+			listener.staleHit();
+		}
+		
+		if (entry.refreshing.compareAndSet(false, true)) {
+			log.debug("cached content is stale for service id " + serviceId + ".. refreshing in background");
+			
+			try {
+				refreshExecutor.execute(new Runnable() {
+					public void run() {
+						try {
+							load(serviceId, response, serviceContext);
+						} catch (Exception e) {
+							refreshFailures.incrementAndGet();
+							log.warn("Failed to refresh cached content for service id " + serviceId, e);
+						} finally {
+							entry.refreshing.set(false);
+						}
+					}
+				});
+			} catch (RuntimeException e) {
+				// executor rejected the refresh
+				entry.refreshing.set(false);
+				log.warn("Unable to schedule cache refresh for service id " + serviceId, e);
+			}
+		}
+		
+		return new Content(entry.content);
+	}
+	
+	/**
+	 * Executes the service and caches the result
+	 */
+	private IContent load(Integer serviceId, XBeeResponse response, ServiceContext serviceContext) throws Exception {
+		long start = System.nanoTime();
+		
+		IContent content = service.execute(serviceId, response, serviceContext);
+		
+		long nanos = System.nanoTime() - start;
+		
+		refreshes.incrementAndGet();
+		refreshTimeNanos.addAndGet(nanos);
+		
+		if (listener != null) {
+			listener.refreshed(nanos);
+		}
+		
+		if (content != null && !content.isErrorMessage()) {
+			cache.put(serviceId, new Entry(content, System.nanoTime()));
+			return new Content(content);
+		}
+		
+		return content;
+	}
+	
+	/**
+	 * Removes all cached content
+	 */
+	public void invalidate() {
+		cache.clear();
+	}
+	
+	public PullService getService() {
+		return service;
+	}
+	
+	public long getTtlMillis() {
+		return ttlMillis;
+	}
+
+	/**
+	 * Requests answered with fresh content
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Requests answered with stale content while a refresh was triggered
+	 */
+	public long getStaleHits() {
+		return staleHits.get();
+	}
+
+	/**
+	 * Requests that had to execute the service
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Number of service executions, foreground and background
+	 */
+	public long getRefreshes() {
+		return refreshes.get();
+	}
+
+	public long getRefreshFailures() {
+		return refreshFailures.get();
+	}
+
+	/**
+	 * Total time spent executing the service, in milliseconds
+	 */
+	public long getRefreshTimeMillis() {
+		return refreshTimeNanos.get() / 1000000L;
+	}
+	
+	public String toString() {
+		return "cached(ttl=" + ttlMillis + ",hits=" + hits + ",staleHits=" + staleHits + ",misses=" + misses + "," + service + ")";
+	}
+}
@@ -88,17 +88,29 @@ public class DelayedAlert extends Alert implements Delayed {
 		
 		return false;
 	}
+	
+	public int hashCode() {
+		int hash = id != null ? id.hashCode() : 0;
+		return 31 * hash + (expectedFireDate != null ? expectedFireDate.hashCode() : 0);
+	}
 
+	/**
+	 * Orders by expectedFireDate.  Does not depend on the current time, so the order is stable
+	 */
 	public int compareTo(Delayed delayed) {
 //		log.debug("compareTo():" + delayed);
 		
-		if (this.getDelay(TimeUnit.MILLISECONDS) < delayed.getDelay(TimeUnit.MILLISECONDS)) {
-			return -1;
-		} else if (this.getDelay(TimeUnit.MILLISECONDS) > delayed.getDelay(TimeUnit.MILLISECONDS)) {
-			return 1;
+		if (delayed instanceof DelayedAlert) {
+			long other = ((DelayedAlert) delayed).getExpectedFireDate().getTime();
+			long time = this.getExpectedFireDate().getTime();
+			
+			return time < other ? -1 : (time > other ? 1 : 0);
 		}
 		
-		return 0;
+		long delay = this.getDelay(TimeUnit.MILLISECONDS);
+		long other = delayed.getDelay(TimeUnit.MILLISECONDS);
+		
+		return delay < other ? -1 : (delay > other ? 1 : 0);
 	}
 	
 	public Object getId() {
@@ -0,0 +1,36 @@
+/**
+ * Copyright (c) 2009 Andrew Rapp. All rights reserved.
+ *  
+ * This file is part of Droplet.
+ *  
+ * Droplet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * Droplet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License
+ * along with Droplet.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.droplet.framework.service;
+
+/**
+ * What a recurring push service does about executions it missed because the host was suspended
+ * or the service fell behind
+ * 
+ * @author andrew
+ *
+ */
+public enum MissedExecutionPolicy {
+	/** run once for all missed executions, then continue from now */
+	COALESCE, 
+	/** don't run the missed executions, continue from now */
+	SKIP, 
+	/** run the missed executions back to back, up to the service's maxReplayedExecutions, then continue from now */
+	REPLAY
+}
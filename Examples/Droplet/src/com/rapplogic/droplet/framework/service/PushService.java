@@ -19,6 +19,9 @@
 
 package com.rapplogic.droplet.framework.service;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import com.rapplogic.xbee.api.XBeeAddress64;
 
 /**
@@ -31,14 +34,79 @@ import com.rapplogic.xbee.api.XBeeAddress64;
  */
 public abstract class PushService {
 	
-	private XBeeAddress64 remoteXBeeAddress;
+	private final List<XBeeAddress64> remoteXBeeAddresses = new ArrayList<XBeeAddress64>();
+	
+	private MissedExecutionPolicy missedExecutionPolicy = MissedExecutionPolicy.COALESCE;
+	private int maxReplayedExecutions = 3;
+	private boolean coalesceAlerts = true;
 	
+	/**
+	 * The first remote this service sends to
+	 */
 	public XBeeAddress64 getRemoteXBeeAddress() {
-		return remoteXBeeAddress;
+		return remoteXBeeAddresses.isEmpty() ? null : remoteXBeeAddresses.get(0);
 	}
 
+	/**
+	 * Replaces all remotes with this remote
+	 */
 	public void setRemoteXBeeAddress(XBeeAddress64 remoteXBeeAddress) {
-		this.remoteXBeeAddress = remoteXBeeAddress;
+		this.remoteXBeeAddresses.clear();
+		this.addRemoteXBeeAddress(remoteXBeeAddress);
+	}
+	
+	/**
+	 * Adds a remote this service sends to (e.g. calendar alerts to bedroom and office).
+	 * Services should use setRemoteXBeeAddresses(getRemoteXBeeAddresses()) on the alerts they create
+	 */
+	public void addRemoteXBeeAddress(XBeeAddress64 remoteXBeeAddress) {
+		if (remoteXBeeAddress != null && !remoteXBeeAddresses.contains(remoteXBeeAddress)) {
+			remoteXBeeAddresses.add(remoteXBeeAddress);
+		}
+	}
+	
+	public List<XBeeAddress64> getRemoteXBeeAddresses() {
+		return new ArrayList<XBeeAddress64>(remoteXBeeAddresses);
+	}
+
+	/**
+	 * Applies to RecurringServices.  Default is COALESCE, which runs once after the host wakes from sleep 
+	 * instead of making up every missed execution
+	 */
+	public MissedExecutionPolicy getMissedExecutionPolicy() {
+		return missedExecutionPolicy;
+	}
+
+	public void setMissedExecutionPolicy(MissedExecutionPolicy missedExecutionPolicy) {
+		this.missedExecutionPolicy = missedExecutionPolicy;
+	}
+
+	/**
+	 * Maximum missed executions that are made up with the REPLAY policy.  Default is 3
+	 */
+	public int getMaxReplayedExecutions() {
+		return maxReplayedExecutions;
+	}
+
+	public void setMaxReplayedExecutions(int maxReplayedExecutions) {
+		if (maxReplayedExecutions <= 0) {
+			throw new IllegalArgumentException("must be > 0");
+		}
+		
+		this.maxReplayedExecutions = maxReplayedExecutions;
+	}
+
+	/**
+	 * If false, alerts of this service are never combined with other alerts for the same remote.
+	 * Alerts returned by a RealtimeAlertPushService get this automatically; other services should 
+	 * use alert.setCoalesce(isCoalesceAlerts())
+	 */
+	public boolean isCoalesceAlerts() {
+		return coalesceAlerts;
+	}
+
+	public void setCoalesceAlerts(boolean coalesceAlerts) {
+		this.coalesceAlerts = coalesceAlerts;
 	}
 
 	public abstract String getName();
@@ -50,8 +118,8 @@ public abstract class PushService {
 		sb.append("serviceName=");
 		sb.append(this.getName());
 		
-		sb.append(",remoteXBeeAddress=");
-		sb.append(this.getRemoteXBeeAddress());
+		sb.append(",remoteXBeeAddresses=");
+		sb.append(this.getRemoteXBeeAddresses());
 		
 		if (this instanceof OneTimeService) {
 			// is also true for RecurringService
@@ -64,6 +132,8 @@ public abstract class PushService {
 			sb.append(((RecurringService)this).getType());
 			sb.append(",delay=");
 			sb.append(((RecurringService)this).getDelay());
+			sb.append(",missedExecutionPolicy=");
+			sb.append(this.getMissedExecutionPolicy());
 		} else if (this instanceof OneTimeService) {
 			sb.append(",type=oneTimeService");
 		} else if (this instanceof RunnablePushService) {
@@ -42,6 +42,22 @@ public class Content implements IContent {
 	private int currentPageNumberIndex;
 	private boolean errorMessage;
 
+	public Content() {
+		
+	}
+	
+	/**
+	 * Creates a new Content that shares the pages of another content, but has its own 
+	 * current page, starting at the first page.  Use this to send the same content to
+	 * more than one remote since page navigation changes the current page.
+	 * 
+	 * @param content
+	 */
+	public Content(IContent content) {
+		this.pages.addAll(content.getPages());
+		this.errorMessage = content.isErrorMessage();
+	}
+
 	public boolean isErrorMessage() {
 		return errorMessage;
 	}
@@ -0,0 +1,165 @@
+/**
+ * Copyright (c) 2009 Andrew Rapp. All rights reserved.
+ *  
+ * This file is part of Droplet.
+ *  
+ * Droplet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * Droplet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License
+ * along with Droplet.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.droplet.framework.text;
+
+/**
+ * Packs LCD text into 6 bits per character, so a full 80 character page takes 60 bytes instead of 80.
+ * <p/>
+ * Codes: 0-25 a-z, 26-51 A-Z, 52-61 0-9, 62 space.  63 is an escape; the next code is an index into PUNCTUATION.
+ * Codes are written most significant bit first and the last byte is padded with 1 bits, which decode as a 
+ * trailing escape and are ignored.  The LCD4x20 library's printlnPacked decodes this format, so PUNCTUATION 
+ * must match PACKED_PUNCTUATION in LCD4x20.cpp.
+ * 
+ * @author andrew
+ *
+ */
+public class PackedText {
+
+	/**
+	 * Characters that follow an escape, by index.  Don't reorder without changing the Arduino library
+	 */
+	public final static String PUNCTUATION = "\n.,:;!?'\"-_/\\()[]{}<>@#$%&*+=~^|`";
+	
+	private final static int SPACE = 62;
+	private final static int ESC = 63;
+	
+	private PackedText() {
+		
+	}
+	
+	private static int getCode(char c) {
+		if (c >= 'a' && c <= 'z') {
+			return c - 'a';
+		} else if (c >= 'A' && c <= 'Z') {
+			return c - 'A' + 26;
+		} else if (c >= '0' && c <= '9') {
+			return c - '0' + 52;
+		} else if (c == ' ') {
+			return SPACE;
+		}
+		
+		return -1;
+	}
+	
+	private static char getChar(int code) {
+		if (code < 26) {
+			return (char) ('a' + code);
+		} else if (code < 52) {
+			return (char) ('A' + code - 26);
+		} else if (code < 62) {
+			return (char) ('0' + code - 52);
+		}
+		
+		return ' ';
+	}
+	
+	/**
+	 * Returns the packed bytes, or null if the text has a character that can't be packed
+	 */
+	public static int[] pack(String text) {
+		// count codes first, escapes take two
+		int codes = 0;
+		
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			
+			if (getCode(c) >= 0) {
+				codes++;
+			} else if (PUNCTUATION.indexOf(c) >= 0) {
+				codes += 2;
+			} else {
+				return null;
+			}
+		}
+		
+		int[] packed = new int[(codes * 6 + 7) / 8];
+		
+		int bits = 0;
+		int bitCount = 0;
+		int pos = 0;
+		
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			int code = getCode(c);
+			
+			int n = 1;
+			int value = code;
+			
+			if (code < 0) {
+				n = 2;
+				value = (ESC << 6) | PUNCTUATION.indexOf(c);
+			}
+			
+			bits = (bits << (6 * n)) | value;
+			bitCount += 6 * n;
+			
+			while (bitCount >= 8) {
+				bitCount -= 8;
+				packed[pos++] = (bits >> bitCount) & 0xff;
+			}
+			
+			bits &= (1 << bitCount) - 1;
+		}
+		
+		if (bitCount > 0) {
+			// pad with 1s
+			packed[pos] = ((bits << (8 - bitCount)) | (0xff >> bitCount)) & 0xff;
+		}
+		
+		return packed;
+	}
+	
+	/**
+	 * Decodes packed bytes, as the Arduino does
+	 */
+	public static String unpack(int[] packed, int offset, int length) {
+		StringBuilder sb = new StringBuilder();
+		
+		int bits = 0;
+		int bitCount = 0;
+		boolean escape = false;
+		
+		for (int i = offset; i < offset + length; i++) {
+			bits = (bits << 8) | (packed[i] & 0xff);
+			bitCount += 8;
+			
+			while (bitCount >= 6) {
+				bitCount -= 6;
+				int code = (bits >> bitCount) & 0x3f;
+				
+				if (escape) {
+					if (code < PUNCTUATION.length()) {
+						sb.append(PUNCTUATION.charAt(code));
+					}
+					
+					escape = false;
+				} else if (code == ESC) {
+					escape = true;
+				} else {
+					sb.append(getChar(code));
+				}
+			}
+			
+			bits &= (1 << bitCount) - 1;
+		}
+		
+		return sb.toString();
+	}
+}
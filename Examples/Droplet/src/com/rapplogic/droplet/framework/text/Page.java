@@ -20,6 +20,7 @@
 package com.rapplogic.droplet.framework.text;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.apache.log4j.Logger;
@@ -120,6 +121,13 @@ public class Page {
 		return lines.size();
 	}
 	
+	/**
+	 * The lines of this page, as added
+	 */
+	public List<String> getLines() {
+		return Collections.unmodifiableList(lines);
+	}
+	
 	/**
 	 * Returns a string suitable for display on a LCD
 	 * To maintain formatting on LCD the line must either end with a LF or be exactly "lineSize" chars in length
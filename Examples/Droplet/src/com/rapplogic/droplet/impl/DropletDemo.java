@@ -19,6 +19,7 @@
 
 package com.rapplogic.droplet.impl;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Calendar;
 
@@ -34,6 +35,7 @@ import com.rapplogic.droplet.impl.services.email.ImapPushService;
 import com.rapplogic.droplet.impl.services.googlecalendar.GoogleCalendarPullService;
 import com.rapplogic.droplet.impl.services.googlecalendar.GoogleCalendarPushService;
 import com.rapplogic.droplet.impl.services.news.TopStoriesService;
+import com.rapplogic.droplet.impl.services.stats.StatsPullService;
 import com.rapplogic.droplet.impl.services.twitter.TwitterFriendsTimelinePullService;
 import com.rapplogic.droplet.impl.services.twitter.TwitterPushService;
 import com.rapplogic.droplet.impl.services.twitter.TwitterSearchPullService;
@@ -87,6 +89,10 @@ public class DropletDemo {
 		XBeeAddress64 remoteXBee = new XBeeAddress64(0x00,0x13,0xa2,0x00,0x40,0x0a,0x3e,0x02);
 		
 		Droplet droplet = new Droplet();
+		// run service calls on virtual threads (falls back to platform threads on older JVMs)
+//		droplet.setExecutionMode(ExecutionMode.VIRTUAL);
+		// hold alerts overnight, except emergencies, and send them as a digest in the morning
+//		droplet.setQuietHours(new QuietHours(22, 0, 6, 0));
 	
 		try {
 			// connect to the XBee
@@ -117,8 +123,13 @@ public class DropletDemo {
 			// Register Push Services
 			/////////////////////////
 			
+			// keep calendar reminders across restarts
+			droplet.setDelayedAlertJournal(new File("delayed-alerts.journal"));
+			
 			// register google calendar service
 			GoogleCalendarPushService gcal = new GoogleCalendarPushService(googleCreds.getUsername(), googleCreds.getPassword(), remoteXBee);
+			// to also send calendar alerts to another remote (e.g. office), add its address
+//			gcal.addRemoteXBeeAddress(new XBeeAddress64(0x00,0x13,0xa2,0x00,0x40,0x0a,0x3e,0x03));
 			droplet.registerPushService(gcal);		
 			
 			// head for the bomb shelter
@@ -146,8 +157,8 @@ public class DropletDemo {
 			// returns your twitter timeline
 			droplet.registerPullService(1, new TwitterFriendsTimelinePullService(twitterCreds.getUsername(), twitterCreds.getPassword()));
 			
-			// yahoo top stories
-			droplet.registerPullService(2, new TopStoriesService());
+			// yahoo top stories.  cached for 5 minutes, then refreshed in the background
+			droplet.registerPullService(2, new TopStoriesService(), 5*60*1000);
 			
 			// enter your zip code to get current weather and forecast
 			WeatherPullService weather = new WeatherPullService("20175");
@@ -155,9 +166,9 @@ public class DropletDemo {
 			weather.setCurrentWeatherServiceId(3);
 			weather.setWeatherForecastServiceId(4);
 			
-			// current weather
-			droplet.registerPullService(weather.getCurrentWeatherServiceId(), weather);
-			droplet.registerPullService(weather.getWeatherForecastServiceId(), weather);			
+			// current weather.  yahoo updates about every 10 minutes so no point fetching more often
+			droplet.registerPullService(weather.getCurrentWeatherServiceId(), weather, 10*60*1000);
+			droplet.registerPullService(weather.getWeatherForecastServiceId(), weather, 10*60*1000);			
 
 			// twitter search.  you can enter any search term. no twitter account required
 			droplet.registerPullService(5, new TwitterSearchPullService("woot"));
@@ -175,6 +186,9 @@ public class DropletDemo {
 			// Stephen Colbert tweets
 			droplet.registerPullService(7, new TwitterUserTimelinePullService(twitterCreds.getUsername(), twitterCreds.getPassword(), "StephenAtHome"));
 			
+			// droplet stats.  add a menu item for service id 8 to the remote's sketch
+			droplet.registerPullService(8, new StatsPullService());
+			
 			// start services
 			droplet.start();
 			
@@ -74,7 +74,8 @@ public class ImapPushService extends RunnablePushService {
 					// TODO source app (i.e. twtr) should be added in less of a hacky way
 					// TODO Create StringAlert class that has setText method.  framework should paginate content!!!
 					alert.setContent(getServiceContext().getFormatter().format("gmail:" + formatMessage(message)));
-					alert.setRemoteXBeeAddress(getRemoteXBeeAddress());
+					alert.setRemoteXBeeAddresses(getRemoteXBeeAddresses());
+					alert.setCoalesce(isCoalesceAlerts());
 					
 					// send it!
 					getServiceContext().sendAlert(alert);						
@@ -21,10 +21,11 @@ package com.rapplogic.droplet.impl.services.googlecalendar;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
@@ -52,7 +53,8 @@ public class GoogleCalendarPushService extends DelayedAlertPushService implement
 	
 	private GoogleCalendar calendar = new GoogleCalendar();
 	
-	private HashMap<Integer, EventAlert> alertMap = new HashMap<Integer, EventAlert>();
+	// scheduled alerts by key
+	private HashMap<String, EventAlert> alertMap = new HashMap<String, EventAlert>();
 	
 	private DateFormat timeDf = new SimpleDateFormat("h:mm a");
 	private DateFormat dayDf = new SimpleDateFormat("M/d");
@@ -80,6 +82,9 @@ public class GoogleCalendarPushService extends DelayedAlertPushService implement
 		
 		Date now = new Date();
 		
+		// latest alerts by key
+		HashMap<String, EventAlert> latest = new HashMap<String, EventAlert>();
+		
 		for (EventAlert eventAlert: alerts) {
 			
 			if (eventAlert.getDate().before(now)) {
@@ -89,84 +94,59 @@ public class GoogleCalendarPushService extends DelayedAlertPushService implement
 			
 			log.debug("evaluating alert " + eventAlert);
 			
-			// could use map.get(Object) which depends on equals
-			if (alertMap.containsKey(eventAlert.hashCode())) {
-//				log.debug("reminder is already in map");
-				
-				// won't work until equals is implemented
-				if (alertMap.get(eventAlert.hashCode()).getEvent().uniqueId() != eventAlert.getEvent().uniqueId()) {
-					log.info("reminder has been updated.  need to remove and re-add new event to delay queue: " + eventAlert);
-					// update new one
-					alertMap.put(eventAlert.hashCode(), eventAlert);
-					
-					DelayedAlert da = this.createDelayedAlert(eventAlert, serviceContext);
-					
-					boolean success = serviceContext.getDelayedAlertQueue().remove(da);
-					
-					if (success) {
-						// add updated
-						serviceContext.getDelayedAlertQueue().offer(da);
-					} else {
-						log.error("remove was unsuccesful");
-					}
-				} else {
-//					log.debug("alert has not changed.. ignoring");
-				}
+			String key = this.getKey(eventAlert);
+			latest.put(key, eventAlert);
+			
+			EventAlert scheduled = alertMap.get(key);
+			
+			if (scheduled == null) {
+				log.debug("new alert.. scheduling: " + eventAlert);
+				alertMap.put(key, eventAlert);
+				serviceContext.scheduleDelayedAlert(key, this.createDelayedAlert(eventAlert, serviceContext));
+			} else if (this.isModified(scheduled, eventAlert)) {
+				log.info("reminder has been updated.  rescheduling: " + eventAlert);
+				alertMap.put(key, eventAlert);
+				// replaces the alert scheduled with this key
+				serviceContext.scheduleDelayedAlert(key, this.createDelayedAlert(eventAlert, serviceContext));
 			} else {
-				log.debug("new alert.. adding to map: " + eventAlert);
-				alertMap.put(eventAlert.hashCode(), eventAlert);
-				
-				// add to queue
-				serviceContext.getDelayedAlertQueue().offer(this.createDelayedAlert(eventAlert, serviceContext));
+//				log.debug("alert has not changed.. ignoring");
 			}
 		}
 		
-		List<EventAlert> deleteList = new ArrayList<EventAlert>();
-		
-		// now find deleted.. set operations would be nice here
-		// we are looking for reminders that have been deleted (in hash but not in the latest results).
+		// now find reminders that are no longer in the latest results. 
 		// this could mean it was deleted or has been processed already
-		for (EventAlert alertHash: alertMap.values()) {
+		for (Iterator<Map.Entry<String, EventAlert>> i = alertMap.entrySet().iterator(); i.hasNext();) {
+			Map.Entry<String, EventAlert> entry = i.next();
 			
-//			log.debug("looking for hash reminder in latest results: " + hashReminder);
-			
-			boolean found = false;
-			
-			for (EventAlert reminder: alerts) {
+			if (!latest.containsKey(entry.getKey())) {
+				i.remove();
 				
-//				log.debug("current reminder is: " + reminder);
-				
-				if (alertHash.equals(reminder)) {
-					found = true;
-//					log.debug("current reminder is equal!");
-					break;
+				if (serviceContext.cancelDelayedAlert(entry.getKey())) {
+					log.info("reminder was deleted.  removed from delay queue " + entry.getValue());
+				} else {
+					log.debug("reminder is no longer in delay queue, probably already fired " + entry.getValue());
 				}
 			}
-			
-			if (!found) {
-				deleteList.add(alertHash);
-			}
-		}
-		
-		for (EventAlert delAlert : deleteList) {
-			alertMap.remove(delAlert.hashCode());
-			log.info("reminder was deleted.  removing from delay queue " + delAlert);
-			
-			boolean success = serviceContext.getDelayedAlertQueue().remove(this.createDelayedAlert(delAlert, serviceContext));
-			
-			if (!success) {
-				log.error("failed to remove reminder from queue");
-			} else {
-//				log.info("successfully removed reminder from delayQueue");
-			}
 		}
-		
-		// print queue
-//		for (DelayedAlert alert : delayQueue) {
-//			log.debug("delayedAlertQueue: " + alert);
-//		}
 	}
 
+	/**
+	 * Stable key of an event alert: event id, minutes before the event and the day of the alert, 
+	 * so each occurrence of a repeat event has its own key.  A time change within the day is a reschedule
+	 */
+	private String getKey(EventAlert alert) {
+		return "gcal:" + alert.getEvent().getId() + ":" + alert.getMinutesBeforeEvent() + ":" + alert.getDate().getTime() / (24*60*60*1000L);
+	}
+	
+	/**
+	 * Returns true if the alert time or event details changed
+	 */
+	private boolean isModified(EventAlert scheduled, EventAlert latest) {
+		return !scheduled.getDate().equals(latest.getDate()) || scheduled.getEvent().uniqueId() != latest.getEvent().uniqueId() 
+			|| !String.valueOf(scheduled.getEvent().getDescription()).equals(String.valueOf(latest.getEvent().getDescription()))
+			|| !String.valueOf(scheduled.getEvent().getLocation()).equals(String.valueOf(latest.getEvent().getLocation()));
+	}
+	
 	private DelayedAlert createDelayedAlert(final EventAlert alert, ServiceContext sc) {
 		
 //		if (this.getExpectedFireDate().equals(da.getExpectedFireDate())) {
@@ -211,7 +191,8 @@ public class GoogleCalendarPushService extends DelayedAlertPushService implement
 		da.setContent(sc.getFormatter().format(sb.toString()));
 		// set the delay from now until when the reminder should be sent to the remote
 		da.setExpectedFireDate(alert.getDate());
-		da.setRemoteXBeeAddress(this.getRemoteXBeeAddress());
+		da.setRemoteXBeeAddresses(this.getRemoteXBeeAddresses());
+		da.setCoalesce(this.isCoalesceAlerts());
 		
 		if (alert.getEvent().getDescription().indexOf(alarmIndicator) > -1) {
 			log.debug("#buzzer# token found in event description");
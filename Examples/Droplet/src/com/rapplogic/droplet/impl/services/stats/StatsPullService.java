@@ -0,0 +1,104 @@
+/**
+ * Copyright (c) 2009 Andrew Rapp. All rights reserved.
+ *  
+ * This file is part of Droplet.
+ *  
+ * Droplet is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *  
+ * Droplet is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License
+ * along with Droplet.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.droplet.impl.services.stats;
+
+import com.rapplogic.droplet.framework.ServiceContext;
+import com.rapplogic.droplet.framework.DropletMetrics.Snapshot;
+import com.rapplogic.droplet.framework.DropletMetrics.Stage;
+import com.rapplogic.droplet.framework.DropletMetrics.StageSnapshot;
+import com.rapplogic.droplet.framework.service.PullService;
+import com.rapplogic.droplet.framework.text.Content;
+import com.rapplogic.droplet.framework.text.ContentFormatter;
+import com.rapplogic.droplet.framework.text.IContent;
+import com.rapplogic.xbee.api.XBeeResponse;
+
+/**
+ * Displays Droplet stats on the LCD: uptime, request/alert counts, errors on the first page, pull service cache
+ * hits/misses on the second and the median/99th percentile latency of each pipeline stage on the following pages
+ * 
+ * @author andrew
+ *
+ */
+public class StatsPullService implements PullService {
+
+	public IContent execute(Integer serviceId, XBeeResponse response, ServiceContext serviceContext) throws Exception {
+		Snapshot stats = serviceContext.getMetrics().snapshot();
+		ContentFormatter formatter = serviceContext.getFormatter();
+		
+		StringBuilder sb = new StringBuilder();
+		
+		sb.append("up ").append(this.formatUptime(stats.getUptimeMillis())).append(ContentFormatter.LF);
+		sb.append("pull ").append(stats.getPullMessages()).append(" page ").append(stats.getNextPrevPageHits()).append(ContentFormatter.LF);
+		sb.append("push ").append(stats.getPushAlerts()).append(" fail ").append(stats.getDeliveryFailures()).append(ContentFormatter.LF);
+		sb.append("tmout ").append(stats.getPullTimeouts()).append(" err ").append(stats.getPullAppErrors());
+		
+		Content content = new Content();
+		content.addPages(formatter.format(sb.toString()).getPages());
+		
+		sb = new StringBuilder();
+		sb.append("cache hit ").append(stats.getCacheHits()).append(ContentFormatter.LF);
+		sb.append("stale ").append(stats.getCacheStaleHits()).append(ContentFormatter.LF);
+		sb.append("miss ").append(stats.getCacheMisses());
+		
+		content.addPages(formatter.format(sb.toString()).getPages());
+		
+		for (Stage stage : Stage.values()) {
+			StageSnapshot latency = stats.getStage(stage);
+			
+			sb = new StringBuilder();
+			sb.append(this.getLabel(stage)).append(" n=").append(latency.getCount()).append(ContentFormatter.LF);
+			sb.append("p50 ").append(this.formatMicros(latency.getP50Micros())).append(ContentFormatter.LF);
+			sb.append("p99 ").append(this.formatMicros(latency.getP99Micros())).append(ContentFormatter.LF);
+			sb.append("max ").append(this.formatMicros(latency.getMaxMicros()));
+			
+			content.addPages(formatter.format(sb.toString()).getPages());
+		}
+		
+		return content;
+	}
+	
+	private String getLabel(Stage stage) {
+		switch (stage) {
+			case RX_TO_DISPATCH: return "rx-dispatch";
+			case SERVICE_EXECUTION: return "service";
+			case FORMATTING: return "format";
+			case TX_TO_ACK: return "tx-ack";
+			case ALERT_QUEUE_WAIT: return "alert wait";
+			case PUSH_EXECUTION: return "push exec";
+			case CACHE_REFRESH: return "cache refresh";
+			default: return stage.toString();
+		}
+	}
+	
+	private String formatMicros(long micros) {
+		if (micros < 1000) {
+			return micros + "us";
+		} else if (micros < 1000000) {
+			return (micros / 1000) + "ms";
+		}
+		
+		return (micros / 1000000) + "s";
+	}
+	
+	private String formatUptime(long millis) {
+		long minutes = millis / 60000;
+		return (minutes / (60 * 24)) + "d " + ((minutes / 60) % 24) + "h " + (minutes % 60) + "m";
+	}
+}
@@ -85,7 +85,7 @@ public class TwitterPushService extends RealtimeAlertPushService implements Recu
 			alert = new Alert();
 			// TODO source app (i.e. twtr) should be added in less of a hacky way
 			alert.setContent(serviceContext.getFormatter().format("twtr:" + tweet.formatForLcd()));
-			alert.setRemoteXBeeAddress(this.getRemoteXBeeAddress());
+			alert.setRemoteXBeeAddresses(this.getRemoteXBeeAddresses());
 		} else {
 			// no updates
 		}
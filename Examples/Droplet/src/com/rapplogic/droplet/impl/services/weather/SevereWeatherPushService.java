@@ -74,9 +74,11 @@ public class SevereWeatherPushService extends RealtimeAlertPushService implement
 			// uh-oh
 			Alert alert = new Alert();
 			alert.setContent(serviceContext.getFormatter().format("Severe weather: " + weather.getText()));
-			alert.setRemoteXBeeAddress(this.getRemoteXBeeAddress());
+			alert.setRemoteXBeeAddresses(this.getRemoteXBeeAddresses());
 			alert.setFlashLed(true);
 			alert.setSoundAlarm(true);
+			// skip ahead of tweets and emails
+			alert.setPriority(Alert.Priority.EMERGENCY);
 		
 			return alert;
 		}
@@ -42,6 +42,15 @@ extern "C" {
 #define CMD_ENTRY_MODE_SET_INCREMENT B00000010
 #define CMD_ENTRY_MODE_SET_DISP_SHIFT B00000001
 
+// packed text codes: 0-25 a-z, 26-51 A-Z, 52-61 0-9, 62 space, 63 escape
+#define PACKED_SPACE 62
+#define PACKED_ESC 63
+// max chars of a packed message (84 bytes)
+#define PACKED_MAX_CHARS 112
+
+// chars that follow an escape, by index.  must match PackedText.PUNCTUATION in Droplet
+static const char PACKED_PUNCTUATION[] = "\n.,:;!?'\"-_/\\()[]{}<>@#$%&*+=~^|`";
+
 // NOTES:
 // DDRAM address is position of last written or read char inc/dec auto when set to
 
@@ -448,6 +457,59 @@ void LCD4x20::print(uint8_t* msg, int offset, int length) {
   }
 }
 
+/**
+ * Codes are read most significant bit first.  A trailing escape is padding and is ignored
+ */
+int LCD4x20::unpack(uint8_t* msg, int offset, int length, uint8_t* out, int max) {
+	int count = 0;
+	// never holds more than 13 bits
+	unsigned int bits = 0;
+	int bitCount = 0;
+	bool escape = false;
+
+	for (int i = offset; i < offset + length; i++) {
+		bits = (bits << 8) | msg[i];
+		bitCount += 8;
+
+		while (bitCount >= 6) {
+			bitCount -= 6;
+			uint8_t code = (bits >> bitCount) & 0x3f;
+
+			if (count == max) {
+				return count;
+			}
+
+			if (escape) {
+				if (code < sizeof(PACKED_PUNCTUATION) - 1) {
+					out[count++] = PACKED_PUNCTUATION[code];
+				}
+
+				escape = false;
+			} else if (code == PACKED_ESC) {
+				escape = true;
+			} else if (code < 26) {
+				out[count++] = 'a' + code;
+			} else if (code < 52) {
+				out[count++] = 'A' + code - 26;
+			} else if (code < 62) {
+				out[count++] = '0' + code - 52;
+			} else {
+				out[count++] = ' ';
+			}
+		}
+
+		bits &= (1 << bitCount) - 1;
+	}
+
+	return count;
+}
+
+void LCD4x20::printlnPacked(uint8_t* msg, int offset, int length) {
+	uint8_t chars[PACKED_MAX_CHARS];
+	int count = unpack(msg, offset, length, chars, PACKED_MAX_CHARS);
+	println(chars, 0, count);
+}
+
 /**
  * Prints string to display then moves cursor to end of line
  * so next print will occur on next line
@@ -67,6 +67,14 @@ public:
 	 * Same as println(char msg[]), but allows a subset of the string to be printed, from offset to offset + length
 	 */
 	void println(uint8_t* msg, int offset, int length);
+	/**
+	 * Same as println(uint8_t* msg, int offset, int length), but msg is 6-bit packed text (see Droplet PackedText.java)
+	 */
+	void printlnPacked(uint8_t* msg, int offset, int length);
+	/**
+	 * Decodes 6-bit packed text into out, up to max chars, and returns the number of chars
+	 */
+	int unpack(uint8_t* msg, int offset, int length, uint8_t* out, int max);
 	/**
 	 * Prints the string and moves the cursor to the end of display so the next print will occur on the next line
 	 */